@@ -0,0 +1,136 @@
+package com.nullin.testrail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.nullin.testrail.client.request.ResultRequest;
+import com.nullin.testrail.dto.Case;
+import com.nullin.testrail.dto.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures serialization of the result body sent for every test and deserialization of the
+ * case and test lists loaded when the reporter starts up, with the same Jackson configuration
+ * and pre-built readers/writers as {@link com.nullin.testrail.client.TestRailClient}.
+ *
+ * @author nullin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    private static ObjectMapper createObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.configure(SerializationFeature.WRITE_NULL_MAP_VALUES, false);
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        return objectMapper;
+    }
+
+    /**
+     * Body of a single failed result
+     */
+    @State(Scope.Benchmark)
+    public static class ResultBodyState {
+
+        ObjectWriter writer;
+        ResultRequest resultBody;
+
+        @Setup
+        public void setup() throws Exception {
+            writer = createObjectMapper().writerWithType(ResultRequest.class);
+            Map<String, String> moreInfo = new HashMap<String, String>();
+            moreInfo.put("class", "com.nullin.testrail.sampleproj.TestClassA");
+            moreInfo.put("method", "test2");
+            resultBody = new ResultRequest();
+            resultBody.statusId = 5;
+            resultBody.comment = new CommentRenderer(100, 65536).render(ResultStatus.FAIL,
+                    new AssertionError("expected [1] but found [2]"), null, moreInfo);
+            resultBody.elapsed = "2s";
+        }
+    }
+
+    /**
+     * Serialized lists of cases and tests of the given size
+     */
+    @State(Scope.Benchmark)
+    public static class ListState {
+
+        @Param({"1000", "10000", "100000"})
+        public int size;
+
+        ObjectReader casesReader;
+        ObjectReader testsReader;
+        byte[] casesJson;
+        byte[] testsJson;
+
+        @Setup
+        public void setup() throws Exception {
+            ObjectMapper objectMapper = createObjectMapper();
+            TypeFactory typeFactory = objectMapper.getTypeFactory();
+            casesReader = objectMapper.reader(typeFactory.constructCollectionType(List.class, Case.class));
+            testsReader = objectMapper.reader(typeFactory.constructCollectionType(List.class, Test.class));
+            List<Case> cases = new ArrayList<Case>(size);
+            List<Test> tests = new ArrayList<Test>(size);
+            for (int i = 0; i < size; i++) {
+                Case c = new Case();
+                c.id = i;
+                c.title = "Verify that feature " + i + " works as expected";
+                c.suiteId = 1;
+                c.typeId = 3;
+                c.sectionId = i / 100;
+                c.automationId = "com.nullin.tests.FeatureTest#test" + i;
+                c.refs = "BUG-" + i;
+                cases.add(c);
+
+                Test t = new Test();
+                t.id = i + size;
+                t.caseId = i;
+                t.runId = 1;
+                t.automationId = c.automationId;
+                tests.add(t);
+            }
+            casesJson = objectMapper.writeValueAsBytes(cases);
+            testsJson = objectMapper.writeValueAsBytes(tests);
+        }
+    }
+
+    @Benchmark
+    public String serializeResultBody(ResultBodyState state) throws Exception {
+        return state.writer.writeValueAsString(state.resultBody);
+    }
+
+    @Benchmark
+    public List<Case> deserializeCases(ListState state) throws Exception {
+        return state.casesReader.readValue(state.casesJson);
+    }
+
+    @Benchmark
+    public List<Test> deserializeTests(ListState state) throws Exception {
+        return state.testsReader.readValue(state.testsJson);
+    }
+
+}
@@ -0,0 +1,69 @@
+package com.nullin.testrail;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.testng.ITestResult;
+
+/**
+ * Measures the work done by {@link TestRailListener} for every test result before it is
+ * handed over to the reporter: finding the automation id via annotations or parameters and
+ * building the properties (including the "more info" map).
+ *
+ * @author nullin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListenerBenchmark {
+
+    private TestRailListener listener;
+    private ITestResult annotatedResult;
+    private ITestResult dataDrivenResult;
+    private ITestResult failedResult;
+
+    @Setup
+    public void setup() throws Exception {
+        //reporting to TestRail is disabled unless testRail.enabled is set
+        listener = new TestRailListener();
+        annotatedResult = TestResults.create("annotated", new Object[0], ITestResult.SUCCESS, null);
+        dataDrivenResult = TestResults.create("dataDriven", new Object[] {"benchmark2", 10},
+                ITestResult.SUCCESS, null);
+        failedResult = TestResults.create("annotated", new Object[0], ITestResult.FAILURE,
+                new AssertionError("expected [1] but found [2]"));
+    }
+
+    @Benchmark
+    public String automationIdFromAnnotation() {
+        return listener.getAutomationId(annotatedResult);
+    }
+
+    @Benchmark
+    public String automationIdFromParameter() {
+        return listener.getAutomationId(dataDrivenResult);
+    }
+
+    @Benchmark
+    public Map<String, Object> resultProperties() {
+        return listener.getResultProperties(dataDrivenResult);
+    }
+
+    @Benchmark
+    public Map<String, Object> failedResultProperties() {
+        return listener.getResultProperties(failedResult);
+    }
+
+}
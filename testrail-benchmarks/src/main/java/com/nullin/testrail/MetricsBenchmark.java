@@ -0,0 +1,52 @@
+package com.nullin.testrail;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.nullin.testrail.metrics.Histogram;
+import com.nullin.testrail.metrics.StripedCounter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures recording metrics from multiple threads, as done for every request and result,
+ * comparing the {@link StripedCounter} with a single contended {@link AtomicLong}.
+ *
+ * @author nullin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final StripedCounter counter = new StripedCounter();
+    private final AtomicLong atomic = new AtomicLong();
+    private final Histogram histogram = new Histogram();
+
+    @Benchmark
+    public void stripedCounter() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public long atomicLong() {
+        return atomic.incrementAndGet();
+    }
+
+    @Benchmark
+    public void histogram() {
+        histogram.record(System.nanoTime() & 0xFFFFF);
+    }
+}
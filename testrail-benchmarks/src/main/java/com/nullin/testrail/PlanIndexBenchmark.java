@@ -0,0 +1,84 @@
+package com.nullin.testrail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.nullin.testrail.dto.Test;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building the {@link PlanIndex} for a plan with the given number of automation ids
+ * in two suites and a few configurations, and looking up the case and run id of a result in it.
+ *
+ * @author nullin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PlanIndexBenchmark {
+
+    private static final String[] CONFIGS = {"Chrome, Linux", "Firefox, Linux", "Chrome, Windows", "Safari, OSX"};
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private String[] automationIds;
+    private List<Test> tests;
+    private PlanIndex index;
+    private int configOrdinal;
+    private int next;
+
+    @Setup
+    public void setup() {
+        automationIds = new String[size];
+        tests = new ArrayList<Test>(size);
+        for (int i = 0; i < size; i++) {
+            automationIds[i] = "com.nullin.tests.FeatureTest#test" + i;
+            Test test = new Test();
+            test.automationId = automationIds[i];
+            tests.add(test);
+        }
+        index = buildIndex();
+        configOrdinal = index.getConfigOrdinal(CONFIGS[1]);
+    }
+
+    @Benchmark
+    public PlanIndex build() {
+        return buildIndex();
+    }
+
+    @Benchmark
+    public int lookup() {
+        String automationId = automationIds[next++ % size];
+        int ordinal = index.getOrdinal(automationId);
+        int run = index.getRun(ordinal, configOrdinal);
+        return index.getCaseId(ordinal, run) + index.getRunId(run);
+    }
+
+    private PlanIndex buildIndex() {
+        PlanIndex.Builder builder = new PlanIndex.Builder(size);
+        for (int suiteId = 1; suiteId <= 2; suiteId++) {
+            for (int i = 0; i < size; i++) {
+                builder.addCase(suiteId, automationIds[i], suiteId * size + i);
+            }
+        }
+        for (int i = 0; i < CONFIGS.length; i++) {
+            builder.addTests(i + 1, i % 2 + 1, CONFIGS[i], tests);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,91 @@
+package com.nullin.testrail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the work done by {@link TestRailReporter#reportResult(String, java.util.Map)} to build
+ * the comment for a result: formatting the "more info" section and rendering the stack trace,
+ * with the default frame and size limits and without limits. Stack traces are generated with
+ * the given depth per exception and a chain of causes, similar to what deep framework stacks
+ * produce.
+ *
+ * @author nullin
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReporterBenchmark {
+
+    @Param({"10", "100", "400"})
+    public int stackDepth;
+
+    private Map<String, String> moreInfo;
+    private Throwable throwable;
+    private CommentRenderer renderer;
+    private CommentRenderer unlimitedRenderer;
+
+    @Setup
+    public void setup() throws Exception {
+        moreInfo = new LinkedHashMap<String, String>();
+        moreInfo.put("class", "com.nullin.testrail.sampleproj.TestClassA");
+        moreInfo.put("method", "test2");
+        moreInfo.put("parameters", "[testA2, 10, 3]");
+        moreInfo.put("environment", "staging");
+
+        Throwable root = createThrowable(new IllegalStateException("connection refused"), stackDepth);
+        Throwable cause = createThrowable(new RuntimeException("failed to load page", root), stackDepth);
+        throwable = createThrowable(new AssertionError("element not found"), stackDepth);
+        throwable.initCause(cause);
+        renderer = new CommentRenderer(100, 65536);
+        unlimitedRenderer = new CommentRenderer(0, 0);
+    }
+
+    @Benchmark
+    public String passedComment() {
+        return renderer.render(ResultStatus.PASS, null, null, moreInfo);
+    }
+
+    @Benchmark
+    public String failedComment() {
+        return renderer.render(ResultStatus.FAIL, throwable, "http://screenshots/1.png", moreInfo);
+    }
+
+    @Benchmark
+    public String failedCommentUnlimited() {
+        return unlimitedRenderer.render(ResultStatus.FAIL, throwable, "http://screenshots/1.png", moreInfo);
+    }
+
+    @Benchmark
+    public String stackTrace() {
+        return renderer.renderStackTrace(throwable);
+    }
+
+    /**
+     * @return the throwable, with a stack trace of (at least) the given depth
+     */
+    private static Throwable createThrowable(Throwable throwable, int depth) {
+        if (depth > 0) {
+            return createThrowable(throwable, depth - 1);
+        }
+        throwable.fillInStackTrace();
+        return throwable;
+    }
+
+}
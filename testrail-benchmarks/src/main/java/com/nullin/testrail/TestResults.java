@@ -0,0 +1,101 @@
+package com.nullin.testrail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.nullin.testrail.annotations.TestRailCase;
+import org.testng.ITestClass;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.testng.internal.ConstructorOrMethod;
+
+/**
+ * Creates {@link ITestResult} instances for benchmarks without running TestNG
+ *
+ * @author nullin
+ */
+class TestResults {
+
+    /**
+     * Test methods used by the benchmarks
+     */
+    static class SampleTests {
+
+        @TestRailCase("benchmark1")
+        @Test
+        public void annotated() {
+        }
+
+        @DataProvider(name = "DP")
+        public Object[][] getData() {
+            return new Object[][] {{"benchmark2", 10}};
+        }
+
+        @Test(dataProvider = "DP")
+        public void dataDriven(String testId, int x) {
+        }
+    }
+
+    static ITestResult create(String methodName, Object[] parameters, int status, Throwable throwable)
+            throws NoSuchMethodException {
+        Method method = null;
+        for (Method m : SampleTests.class.getMethods()) {
+            if (m.getName().equals(methodName)) {
+                method = m;
+            }
+        }
+        if (method == null) {
+            throw new NoSuchMethodException(methodName);
+        }
+
+        Map<String, Object> methodValues = new HashMap<String, Object>();
+        methodValues.put("getConstructorOrMethod", new ConstructorOrMethod(method));
+        methodValues.put("getMethodName", method.getName());
+        methodValues.put("getRealClass", SampleTests.class);
+
+        Map<String, Object> classValues = new HashMap<String, Object>();
+        classValues.put("getName", SampleTests.class.getName());
+
+        long start = System.currentTimeMillis();
+        Map<String, Object> resultValues = new HashMap<String, Object>();
+        resultValues.put("getMethod", stub(ITestNGMethod.class, methodValues));
+        resultValues.put("getTestClass", stub(ITestClass.class, classValues));
+        resultValues.put("getParameters", parameters);
+        resultValues.put("getStatus", status);
+        resultValues.put("getThrowable", throwable);
+        resultValues.put("getStartMillis", start);
+        resultValues.put("getEndMillis", start + 1500);
+        return stub(ITestResult.class, resultValues);
+    }
+
+    /**
+     * @return an instance of the interface that returns the specified values for the methods
+     * with the given names and fails for all other methods
+     */
+    private static <T> T stub(Class<T> type, final Map<String, Object> values) {
+        return type.cast(Proxy.newProxyInstance(TestResults.class.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                        if (values.containsKey(m.getName())) {
+                            return values.get(m.getName());
+                        }
+                        switch (m.getName()) {
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            case "toString":
+                                return String.valueOf(values);
+                            default:
+                                throw new UnsupportedOperationException(m.getName());
+                        }
+                    }
+                }));
+    }
+}
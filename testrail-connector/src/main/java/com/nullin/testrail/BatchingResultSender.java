@@ -0,0 +1,351 @@
+package com.nullin.testrail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.nullin.testrail.client.ClientException;
+import com.nullin.testrail.client.TestRailClient;
+import com.nullin.testrail.client.request.ResultRequest;
+
+/**
+ * Queues results and delivers them to TestRail from a background thread using the bulk
+ * {@code add_results_for_cases} end point.
+ *
+ * Results are grouped per run id. A group is sent once it reaches the configured batch size
+ * or once the oldest queued result has waited for the configured flush interval, whichever
+ * happens first. {@link #flush()} and {@link #shutdown()} send everything queued so far.
+ *
+ * TestRail rejects a whole batch (400) if any of its results is invalid, e.g. for a case that's
+ * not in the run, so a rejected batch is split in halves that are sent again, until the invalid
+ * results are isolated. Batches that fail for other reasons (server errors, I/O errors) are
+ * retried a few times before the results are counted as failed.
+ *
+ * When results are journaled, a batch is only sent once all its results are synced to the
+ * journal, so that waiting for the disk doesn't hold up the threads running the tests. Once sent,
+ * results are acknowledged in the journal and, for failures reported with the full stack trace,
+ * in the {@link FailureGroups}.
+ *
+ * @author nullin
+ */
+class BatchingResultSender {
+
+    //how long to wait for queued results to be sent when flushing or shutting down
+    private static final long TIMEOUT_SECONDS = 60;
+    //attempts to send a batch that fails for transient reasons, and delay before the first retry
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private Logger logger = Logger.getLogger(BatchingResultSender.class.getName());
+    private final TestRailClient client;
+    //null if results aren't being journaled
+    private final ResultJournal journal;
+    //null if failures aren't being deduplicated
+    private final FailureGroups failureGroups;
+    private final ReporterMetrics metrics;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final BlockingQueue<PendingResult> queue = new LinkedBlockingQueue<PendingResult>();
+    private final Thread worker;
+    //guards stopped, so that no result is queued after the stop marker
+    private final Object stopLock = new Object();
+    private boolean stopped;
+
+    BatchingResultSender(TestRailClient client, ResultJournal journal, FailureGroups failureGroups,
+                         ReporterMetrics metrics, int batchSize, long flushIntervalMillis) {
+        this.client = client;
+        this.journal = journal;
+        this.failureGroups = failureGroups;
+        this.metrics = metrics;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, "testrail-result-sender");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queues a result to be sent to TestRail
+     *
+     * @param runId run id the result belongs to
+     * @param result result body, including the {@code case_id}
+     * @param journalSequence sequence number of the result in the journal, used to acknowledge it once sent
+     * @param fingerprint fingerprint of the failure if the result has its full stack trace, null otherwise
+     */
+    void enqueue(int runId, ResultRequest result, long journalSequence, String fingerprint) {
+        synchronized (stopLock) {
+            if (!stopped) {
+                metrics.queued.increment();
+                queue.add(new PendingResult(runId, result, journalSequence, fingerprint));
+                return;
+            }
+        }
+        logger.severe("Result sender is already stopped. Result for case " + result.caseId +
+                " will not be reported.");
+        metrics.dropped.increment();
+    }
+
+    /**
+     * Sends all results queued before this call and waits for that to complete
+     */
+    void flush() {
+        PendingResult marker = new PendingResult(new CountDownLatch(1), false);
+        queue.add(marker);
+        awaitMarker(marker);
+    }
+
+    /**
+     * Sends all pending results and stops the background thread. Results queued after
+     * this call are not reported.
+     */
+    void shutdown() {
+        PendingResult marker = new PendingResult(new CountDownLatch(1), true);
+        synchronized (stopLock) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            queue.add(marker);
+        }
+        awaitMarker(marker);
+    }
+
+    private void awaitMarker(PendingResult marker) {
+        if (!worker.isAlive()) {
+            return;
+        }
+        try {
+            if (!marker.latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.severe("Timed out waiting for queued results to be sent, " + metrics.queued.sum() +
+                        " results are still queued");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processQueue() {
+        Map<Integer, List<PendingResult>> batches = new LinkedHashMap<Integer, List<PendingResult>>();
+        int pending = 0;
+        long deadline = 0;
+        while (true) {
+            PendingResult item;
+            try {
+                if (pending == 0) {
+                    item = queue.take();
+                } else {
+                    long wait = deadline - System.currentTimeMillis();
+                    item = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+            } catch (InterruptedException e) {
+                sendRemaining(batches);
+                return;
+            }
+
+            if (item == null) {
+                //oldest result has waited long enough
+                sendAll(batches);
+                pending = 0;
+                continue;
+            }
+
+            if (item.latch != null) {
+                sendAll(batches);
+                pending = 0;
+                item.latch.countDown();
+                if (item.stop) {
+                    return;
+                }
+                continue;
+            }
+
+            List<PendingResult> batch = batches.get(item.runId);
+            if (batch == null) {
+                batches.put(item.runId, batch = new ArrayList<PendingResult>());
+            }
+            batch.add(item);
+            if (pending++ == 0) {
+                deadline = System.currentTimeMillis() + flushIntervalMillis;
+            }
+
+            if (batch.size() >= batchSize) {
+                send(item.runId, batch);
+                pending -= batch.size();
+                batches.remove(item.runId);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting results and sends the ones still queued, e.g. when the worker is interrupted
+     */
+    private void sendRemaining(Map<Integer, List<PendingResult>> batches) {
+        synchronized (stopLock) {
+            stopped = true;
+        }
+        List<PendingResult> remaining = new ArrayList<PendingResult>();
+        queue.drainTo(remaining);
+        List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+        for (PendingResult item : remaining) {
+            if (item.latch != null) {
+                latches.add(item.latch);
+                continue;
+            }
+            List<PendingResult> batch = batches.get(item.runId);
+            if (batch == null) {
+                batches.put(item.runId, batch = new ArrayList<PendingResult>());
+            }
+            batch.add(item);
+            if (batch.size() >= batchSize) {
+                send(item.runId, batch);
+                batches.remove(item.runId);
+            }
+        }
+        sendAll(batches);
+        for (CountDownLatch latch : latches) {
+            latch.countDown();
+        }
+    }
+
+    private void sendAll(Map<Integer, List<PendingResult>> batches) {
+        for (Iterator<Map.Entry<Integer, List<PendingResult>>> it = batches.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, List<PendingResult>> entry = it.next();
+            send(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+    }
+
+    private void send(int runId, List<PendingResult> batch) {
+        long lastJournalSequence = 0;
+        for (PendingResult item : batch) {
+            lastJournalSequence = Math.max(lastJournalSequence, item.journalSequence);
+        }
+        if (lastJournalSequence > 0) {
+            try {
+                journal.awaitDurable(lastJournalSequence);
+            } catch (IOException ex) {
+                logger.severe("Failed to journal " + batch.size() + " results for run " + runId +
+                        ", reporting them anyway. Ran into exception " + ex.getMessage());
+            }
+        }
+        try {
+            deliver(runId, batch);
+        } finally {
+            metrics.queued.add(-batch.size());
+        }
+    }
+
+    /**
+     * Sends the results, splitting the batch in halves if it's rejected as invalid
+     */
+    private void deliver(int runId, List<PendingResult> batch) {
+        List<ResultRequest> results = new ArrayList<ResultRequest>(batch.size());
+        for (PendingResult item : batch) {
+            results.add(item.result);
+        }
+        try {
+            addResults(runId, results);
+        } catch (Exception ex) {
+            if (ex instanceof ClientException && ((ClientException) ex).getStatusCode() == 400 && batch.size() > 1) {
+                logger.warning("TestRail rejected " + results.size() + " results for run " + runId +
+                        ", sending them in two halves. Ran into exception " + ex.getMessage());
+                int half = batch.size() / 2;
+                deliver(runId, batch.subList(0, half));
+                deliver(runId, batch.subList(half, batch.size()));
+                return;
+            }
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            //only log and do nothing else
+            metrics.failed.add(results.size());
+            logger.severe("Failed to report " + results.size() + " results for run " + runId +
+                    ". Ran into exception " + ex.getMessage());
+            return;
+        }
+        metrics.reported.add(results.size());
+        for (PendingResult item : batch) {
+            if (item.journalSequence > 0) {
+                journal.ack(item.journalSequence);
+            }
+            if (item.fingerprint != null) {
+                failureGroups.delivered(item.fingerprint, runId, item.result.caseId);
+            }
+        }
+    }
+
+    /**
+     * Sends the results, retrying with a backoff if that fails for transient reasons
+     */
+    private void addResults(int runId, List<ResultRequest> results) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                client.addResultsForCases(runId, results);
+                return;
+            } catch (Exception ex) {
+                if (!isTransient(ex) || attempt >= MAX_ATTEMPTS) {
+                    throw ex;
+                }
+                long delay = RETRY_DELAY_MILLIS << (attempt - 1);
+                logger.warning("Failed to report " + results.size() + " results for run " + runId + ", retrying in " +
+                        delay + "ms. Ran into exception " + ex.getMessage());
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * @return whether the failure is likely to go away if the request is sent again, i.e. an I/O error
+     *          or an error from the server, including throttling once the client's retries are exhausted
+     */
+    private static boolean isTransient(Exception ex) {
+        if (ex instanceof IOException) {
+            return true;
+        }
+        int status = ex instanceof ClientException ? ((ClientException) ex).getStatusCode() : 0;
+        return status >= 500 || status == 429;
+    }
+
+    /**
+     * A queued result or a marker used to flush/stop the background thread
+     */
+    private static class PendingResult {
+        final int runId;
+        final ResultRequest result;
+        final long journalSequence;
+        final String fingerprint;
+        final CountDownLatch latch;
+        final boolean stop;
+
+        PendingResult(int runId, ResultRequest result, long journalSequence, String fingerprint) {
+            this.runId = runId;
+            this.result = result;
+            this.journalSequence = journalSequence;
+            this.fingerprint = fingerprint;
+            this.latch = null;
+            this.stop = false;
+        }
+
+        PendingResult(CountDownLatch latch, boolean stop) {
+            this.runId = 0;
+            this.result = null;
+            this.journalSequence = 0;
+            this.fingerprint = null;
+            this.latch = latch;
+            this.stop = stop;
+        }
+    }
+}
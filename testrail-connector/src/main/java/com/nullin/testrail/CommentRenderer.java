@@ -0,0 +1,295 @@
+package com.nullin.testrail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders the comment reported to TestRail along with a result, including the stack trace
+ * of the exception (if any) indented as a markdown code block.
+ *
+ * Stack traces are rendered in a single pass over the {@link StackTraceElement}s, using the
+ * same layout as {@link Throwable#printStackTrace()}. At most {@code maxFrames} frames are
+ * rendered per exception; the remaining frames and frames in common with the enclosing trace
+ * are folded into a "... n more" line. Comments longer than {@code maxBytes} (in UTF-8) are
+ * truncated. The buffer used for rendering is reused per thread.
+ *
+ * When a result failed the same way as an earlier result in the run (see {@link FailureGroups}),
+ * only the exception and a reference to the earlier case are rendered instead of the stack trace.
+ *
+ * @author nullin
+ */
+class CommentRenderer {
+
+    private static final String INDENT = "    ";
+    private static final String TRUNCATED = "\n\n... (truncated)";
+    private static final StackTraceElement[] NO_FRAMES = new StackTraceElement[0];
+    //buffers that grew larger than this aren't kept around
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final ThreadLocal<RenderState> STATE = new ThreadLocal<RenderState>() {
+        @Override
+        protected RenderState initialValue() {
+            return new RenderState();
+        }
+    };
+
+    private final int maxFrames;
+    private final int maxBytes;
+
+    /**
+     * @param maxFrames max frames rendered per exception, 0 for no limit
+     * @param maxBytes max size of a comment in UTF-8 bytes, 0 for no limit
+     */
+    CommentRenderer(int maxFrames, int maxBytes) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param resultStatus status of the result
+     * @param throwable exception the test failed or was skipped with, can be null
+     * @param screenshotUrl url of a screenshot, can be null
+     * @param moreInfo more information about the test, can be null
+     * @return the comment
+     */
+    String render(ResultStatus resultStatus, Throwable throwable, String screenshotUrl,
+                  Map<String, String> moreInfo) {
+        return render(resultStatus, throwable, screenshotUrl, moreInfo, null, 0);
+    }
+
+    /**
+     * @param resultStatus status of the result
+     * @param throwable exception the test failed or was skipped with, can be null
+     * @param screenshotUrl url of a screenshot, can be null
+     * @param moreInfo more information about the test, can be null
+     * @param fingerprint fingerprint of the exception, can be null
+     * @param firstCaseId id of the first case in the run that failed with the same fingerprint. If
+     *                    set, only the exception is rendered, with a reference to that case,
+     *                    instead of the full stack trace.
+     * @return the comment
+     */
+    String render(ResultStatus resultStatus, Throwable throwable, String screenshotUrl,
+                  Map<String, String> moreInfo, String fingerprint, int firstCaseId) {
+        RenderState state = STATE.get();
+        StringBuilder comment = state.buffer;
+        try {
+            comment.append("More Info (if any):\n");
+            if (moreInfo != null && !moreInfo.isEmpty()) {
+                for (Map.Entry<String, String> entry: moreInfo.entrySet()) {
+                    comment.append("- ").append(entry.getKey()).append(" : ")
+                            .append('`').append(entry.getValue()).append("`\n");
+                }
+            } else {
+                comment.append("- `none`\n");
+            }
+            comment.append("\n");
+            if (screenshotUrl != null && !screenshotUrl.isEmpty()) {
+                comment.append("![](").append(screenshotUrl).append(")\n\n");
+            }
+            if (resultStatus.equals(ResultStatus.SKIP)) {
+                comment.append("Test skipped because of configuration method failure. " +
+                        "Related config error (if captured): \n\n");
+                appendFailure(state, throwable, fingerprint, firstCaseId);
+            }
+            if (resultStatus.equals(ResultStatus.FAIL)) {
+                comment.append("Test failed with following exception (if captured): \n\n");
+                appendFailure(state, throwable, fingerprint, firstCaseId);
+            }
+            return toLimitedString(comment);
+        } finally {
+            state.reset();
+        }
+    }
+
+    /**
+     * @return the stack trace of the throwable, indented by four spaces, or an empty
+     *          string if it's null
+     */
+    String renderStackTrace(Throwable throwable) {
+        RenderState state = STATE.get();
+        try {
+            appendStackTrace(state, throwable);
+            return toLimitedString(state.buffer);
+        } finally {
+            state.reset();
+        }
+    }
+
+    private void appendFailure(RenderState state, Throwable throwable, String fingerprint, int firstCaseId) {
+        StringBuilder sb = state.buffer;
+        if (throwable != null && firstCaseId > 0) {
+            sb.append("Same failure (fingerprint `").append(fingerprint).append("`) as case C").append(firstCaseId)
+                    .append(". See its result for the stack trace.\n\n").append(INDENT);
+            appendText(sb, throwable.toString(), INDENT);
+            sb.append('\n');
+            return;
+        }
+        appendStackTrace(state, throwable);
+        if (throwable != null && fingerprint != null) {
+            sb.append("\nFailure fingerprint: `").append(fingerprint).append("`\n");
+        }
+    }
+
+    private void appendStackTrace(RenderState state, Throwable throwable) {
+        if (throwable != null) {
+            appendThrowable(state, throwable, NO_FRAMES, "", INDENT);
+        }
+    }
+
+    private void appendThrowable(RenderState state, Throwable throwable, StackTraceElement[] enclosingTrace,
+                                 String caption, String prefix) {
+        StringBuilder sb = state.buffer;
+        if (isFull(sb)) {
+            return; //will be truncated anyway
+        }
+        for (Throwable seen : state.seen) {
+            if (seen == throwable) {
+                sb.append(prefix).append(caption).append("[CIRCULAR REFERENCE:");
+                appendText(sb, throwable.toString(), prefix);
+                sb.append("]\n");
+                return;
+            }
+        }
+        state.seen.add(throwable);
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        int uniqueFrames = m + 1;
+        int framesInCommon = trace.length - uniqueFrames;
+
+        sb.append(prefix).append(caption);
+        appendText(sb, throwable.toString(), prefix);
+        sb.append('\n');
+        int frames = maxFrames > 0 ? Math.min(uniqueFrames, maxFrames) : uniqueFrames;
+        int i = 0;
+        for (; i < frames && !isFull(sb); i++) {
+            sb.append(prefix).append(INDENT).append("at ");
+            appendFrame(sb, trace[i]);
+            sb.append('\n');
+        }
+        int omitted = uniqueFrames - i + framesInCommon;
+        if (omitted > 0) {
+            sb.append(prefix).append(INDENT).append("... ").append(omitted).append(" more\n");
+        }
+
+        for (Throwable suppressed : throwable.getSuppressed()) {
+            appendThrowable(state, suppressed, trace, "Suppressed: ", prefix + INDENT);
+        }
+        Throwable cause = throwable.getCause();
+        if (cause != null) {
+            appendThrowable(state, cause, trace, "Caused by: ", prefix);
+        }
+    }
+
+    /**
+     * Same format as {@link StackTraceElement#toString()}, without creating the string
+     */
+    private static void appendFrame(StringBuilder sb, StackTraceElement frame) {
+        sb.append(frame.getClassName()).append('.').append(frame.getMethodName());
+        if (frame.isNativeMethod()) {
+            sb.append("(Native Method)");
+        } else if (frame.getFileName() == null) {
+            sb.append("(Unknown Source)");
+        } else {
+            sb.append('(').append(frame.getFileName());
+            if (frame.getLineNumber() >= 0) {
+                sb.append(':').append(frame.getLineNumber());
+            }
+            sb.append(')');
+        }
+    }
+
+    /**
+     * Appends possibly multi-line text, indenting every line with the prefix and replacing
+     * tabs with spaces
+     */
+    private static void appendText(StringBuilder sb, String text, String prefix) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                sb.append(INDENT);
+            } else {
+                sb.append(c);
+                if (c == '\n') {
+                    sb.append(prefix);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every char takes at least one byte in UTF-8, so once the number of chars is above the
+     * limit, the comment is going to be truncated
+     */
+    private boolean isFull(StringBuilder sb) {
+        return maxBytes > 0 && sb.length() > maxBytes;
+    }
+
+    private String toLimitedString(StringBuilder sb) {
+        if (maxBytes <= 0 || utf8Length(sb, sb.length()) <= maxBytes) {
+            return sb.toString();
+        }
+        int limit = Math.max(maxBytes - TRUNCATED.length(), 0);
+        int bytes = 0;
+        int end = 0;
+        while (end < sb.length()) {
+            int size = utf8Length(sb.charAt(end));
+            if (bytes + size > limit) {
+                break;
+            }
+            bytes += size;
+            end++;
+        }
+        if (end > 0 && Character.isHighSurrogate(sb.charAt(end - 1))) {
+            end--; //don't split a surrogate pair
+        }
+        return sb.substring(0, end) + TRUNCATED;
+    }
+
+    /**
+     * @return length in UTF-8 of the first {@code end} chars
+     */
+    private static int utf8Length(StringBuilder sb, int end) {
+        int bytes = 0;
+        for (int i = 0; i < end; i++) {
+            bytes += utf8Length(sb.charAt(i));
+        }
+        return bytes;
+    }
+
+    /**
+     * @return length of the char in UTF-8. A surrogate pair takes 4 bytes in total.
+     */
+    private static int utf8Length(char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * Buffers reused by a thread
+     */
+    private static class RenderState {
+        StringBuilder buffer = new StringBuilder(1024);
+        //exceptions already rendered, to detect circular references
+        final List<Throwable> seen = new ArrayList<Throwable>();
+
+        void reset() {
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                buffer = new StringBuilder(1024);
+            } else {
+                buffer.setLength(0);
+            }
+            seen.clear();
+        }
+    }
+}
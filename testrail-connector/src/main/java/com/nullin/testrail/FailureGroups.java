@@ -0,0 +1,196 @@
+package com.nullin.testrail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Groups failed results by a fingerprint of the exception they failed with, so that the full
+ * stack trace is only reported for the first result with a given fingerprint in a run. Later
+ * results reference that case once it has been delivered to TestRail; until then, they include
+ * the full stack trace as well, so that it isn't lost if the first result fails to be delivered.
+ *
+ * The fingerprint is a 64 bit FNV-1a hash of the types of the exceptions in the cause chain
+ * and of the top frames of the root cause. Frames are normalized: line numbers and reflection
+ * frames are ignored and the generated parts of proxy, accessor and CGLIB/lambda class names
+ * are dropped, so that the same failure yields the same fingerprint across tests and builds.
+ *
+ * @author nullin
+ */
+class FailureGroups {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    //max number of automation ids logged per group in the summary
+    private static final int SUMMARY_MAX_TESTS = 10;
+
+    private final int maxFrames;
+    private final ConcurrentMap<String, Group> groups = new ConcurrentHashMap<String, Group>();
+
+    /**
+     * @param maxFrames number of frames of the root cause included in the fingerprint
+     */
+    FailureGroups(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * @return fingerprint of the throwable as 16 hex digits
+     */
+    String fingerprint(Throwable throwable) {
+        long h = FNV_OFFSET_BASIS;
+        Throwable root = throwable;
+        for (int depth = 0; throwable != null && depth < 32; depth++) {
+            h = hash(h, throwable.getClass().getName());
+            root = throwable;
+            throwable = throwable.getCause();
+        }
+        int frames = 0;
+        for (StackTraceElement frame : root.getStackTrace()) {
+            if (frames == maxFrames) {
+                break;
+            }
+            String className = frame.getClassName();
+            if (className.startsWith("sun.reflect.") || className.startsWith("jdk.internal.reflect.")) {
+                continue;
+            }
+            h = hash(h, className);
+            h = hash(h, frame.getMethodName());
+            frames++;
+        }
+        String hex = Long.toHexString(h);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * Records a failed result
+     *
+     * @param fingerprint fingerprint of the exception
+     * @param throwable exception the test failed with
+     * @param runId run the result is reported to
+     * @param automationId automation id of the test
+     * @return id of the first case delivered to the run that failed with the same fingerprint, or 0 if
+     *          there is none yet and the result should include the full stack trace
+     */
+    int add(String fingerprint, Throwable throwable, int runId, String automationId) {
+        Group group = groups.get(fingerprint);
+        if (group == null) {
+            Group newGroup = new Group(fingerprint, firstLine(throwable.toString()));
+            group = groups.putIfAbsent(fingerprint, newGroup);
+            group = group == null ? newGroup : group;
+        }
+        return group.add(runId, automationId);
+    }
+
+    /**
+     * Records that a result with the full stack trace was delivered, so that later results with the
+     * same fingerprint reference it. Only the first delivered case is referenced.
+     *
+     * @param fingerprint fingerprint of the exception
+     * @param runId run the result was reported to
+     * @param caseId case the result was reported for
+     */
+    void delivered(String fingerprint, int runId, int caseId) {
+        Group group = groups.get(fingerprint);
+        if (group != null) {
+            group.delivered(runId, caseId);
+        }
+    }
+
+    /**
+     * @return summary of the failures recorded so far, grouped by fingerprint with the largest
+     *          groups first, or null if no failures were recorded
+     */
+    String getSummary() {
+        List<Group> sorted = new ArrayList<Group>(groups.values());
+        if (sorted.isEmpty()) {
+            return null;
+        }
+        Collections.sort(sorted, new Comparator<Group>() {
+            @Override
+            public int compare(Group g1, Group g2) {
+                return g2.size() - g1.size();
+            }
+        });
+        StringBuilder summary = new StringBuilder("Failures grouped by fingerprint:\n");
+        for (Group group : sorted) {
+            synchronized (group) {
+                summary.append("- ").append(group.fingerprint).append(" (").append(group.automationIds.size())
+                        .append(" results): ").append(group.description).append('\n');
+                int count = Math.min(group.automationIds.size(), SUMMARY_MAX_TESTS);
+                for (String automationId : group.automationIds.subList(0, count)) {
+                    summary.append("    ").append(automationId).append('\n');
+                }
+                if (group.automationIds.size() > count) {
+                    summary.append("    ... ").append(group.automationIds.size() - count).append(" more\n");
+                }
+            }
+        }
+        return summary.toString();
+    }
+
+    private static String firstLine(String text) {
+        int end = text.indexOf('\n');
+        return end < 0 ? text : text.substring(0, end).trim();
+    }
+
+    private static long hash(long h, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '$' && i + 1 < name.length() && name.charAt(i + 1) == '$') {
+                break; //generated suffix, e.g. Foo$$EnhancerByCGLIB$$1a2b or Foo$$Lambda$12/0x0001
+            }
+            if (c >= '0' && c <= '9' && isGeneratedNumber(name, i)) {
+                continue; //e.g. $Proxy12 or GeneratedMethodAccessor34
+            }
+            h = (h ^ c) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static boolean isGeneratedNumber(String name, int index) {
+        int start = index;
+        while (start > 0 && Character.isDigit(name.charAt(start - 1))) {
+            start--;
+        }
+        return name.regionMatches(start - 6, "$Proxy", 0, 6) || name.regionMatches(start - 8, "Accessor", 0, 8);
+    }
+
+    /**
+     * Results that failed with the same fingerprint
+     */
+    private static class Group {
+        final String fingerprint;
+        //first line of the first exception, for the summary
+        final String description;
+        //first case delivered with the full stack trace, per run
+        final Map<Integer, Integer> firstCaseIds = new HashMap<Integer, Integer>();
+        final List<String> automationIds = new ArrayList<String>();
+
+        Group(String fingerprint, String description) {
+            this.fingerprint = fingerprint;
+            this.description = description;
+        }
+
+        synchronized int add(int runId, String automationId) {
+            automationIds.add(automationId);
+            Integer firstCaseId = firstCaseIds.get(runId);
+            return firstCaseId == null ? 0 : firstCaseId;
+        }
+
+        synchronized void delivered(int runId, int caseId) {
+            if (!firstCaseIds.containsKey(runId)) {
+                firstCaseIds.put(runId, caseId);
+            }
+        }
+
+        synchronized int size() {
+            return automationIds.size();
+        }
+    }
+}
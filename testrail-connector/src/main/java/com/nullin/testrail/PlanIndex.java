@@ -0,0 +1,262 @@
+package com.nullin.testrail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nullin.testrail.dto.Test;
+
+/**
+ * Compact index of the case ids and runs of a test plan, used to look up where the result of
+ * a test should be reported. The plan can contain runs for multiple suites.
+ *
+ * Every automation id is stored once and assigned an ordinal. Suites, runs and configurations
+ * of the runs are assigned small ordinals as well (runs without a configuration share their own
+ * configuration ordinal). The run for an automation id and configuration is kept in an int array
+ * indexed by both ordinals, and the case id in an int array indexed by the automation id and
+ * suite ordinals, so lookups don't allocate.
+ *
+ * Instances are immutable and can be shared between threads once built.
+ *
+ * @author nullin
+ */
+class PlanIndex {
+
+    //returned for unknown automation ids, configurations and runs
+    static final int NOT_FOUND = -1;
+
+    private final StringIntMap automationIds;
+    private final StringIntMap configs;
+    private final int configCount;
+    private final int suiteCount;
+    //run id and suite ordinal per run ordinal
+    private final int[] runIds;
+    private final int[] runSuites;
+    //suite id per suite ordinal
+    private final int[] suiteIds;
+    //run ordinal + 1 per automation id ordinal * configCount + config ordinal, 0 if there is no run
+    private final int[] runs;
+    //case id per automation id ordinal * suiteCount + suite ordinal, 0 if there is no case
+    private final int[] caseIds;
+
+    private PlanIndex(Builder builder, int[] runs, int[] caseIds) {
+        this.automationIds = builder.automationIds;
+        this.configs = builder.configs;
+        this.configCount = configs.size() + 1;
+        this.suiteCount = builder.suiteIds.size();
+        this.runIds = toArray(builder.runIds);
+        this.runSuites = toArray(builder.runSuites);
+        this.suiteIds = toArray(builder.suiteIds);
+        this.runs = runs;
+        this.caseIds = caseIds;
+    }
+
+    /**
+     * @return ordinal of the automation id or {@link #NOT_FOUND}
+     */
+    int getOrdinal(String automationId) {
+        return automationId == null ? NOT_FOUND : automationIds.get(automationId);
+    }
+
+    /**
+     * @param config configuration of a run, can be null
+     * @return ordinal of the configuration or {@link #NOT_FOUND} if no run uses it
+     */
+    int getConfigOrdinal(String config) {
+        return config == null ? 0 : configs.get(config);
+    }
+
+    /**
+     * @param ordinal automation id ordinal
+     * @param configOrdinal configuration ordinal
+     * @return ordinal of the run with a test for the automation id and configuration or
+     *          {@link #NOT_FOUND} if there is none
+     */
+    int getRun(int ordinal, int configOrdinal) {
+        if (ordinal < 0 || configOrdinal < 0) {
+            return NOT_FOUND;
+        }
+        return runs[ordinal * configCount + configOrdinal] - 1;
+    }
+
+    /**
+     * @param run run ordinal
+     * @return id of the run
+     */
+    int getRunId(int run) {
+        return runIds[run];
+    }
+
+    /**
+     * @param run run ordinal
+     * @return id of the suite the run belongs to
+     */
+    int getSuiteId(int run) {
+        return suiteIds[runSuites[run]];
+    }
+
+    /**
+     * @param ordinal automation id ordinal
+     * @param run run ordinal
+     * @return id of the case with the automation id in the suite the run belongs to, or 0 if
+     *          there is none
+     */
+    int getCaseId(int ordinal, int run) {
+        return caseIds[ordinal * suiteCount + runSuites[run]];
+    }
+
+    /**
+     * @return number of cases with an automation id, across all suites
+     */
+    int getCaseCount() {
+        int count = 0;
+        for (int caseId : caseIds) {
+            if (caseId != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Builds a {@link PlanIndex}. Not thread safe.
+     */
+    static class Builder {
+
+        private final StringIntMap automationIds;
+        private final StringIntMap configs = new StringIntMap(16, NOT_FOUND);
+        private final List<Integer> suiteIds = new ArrayList<Integer>();
+        //case id per automation id ordinal, for each suite
+        private final List<int[]> suiteCaseIds = new ArrayList<int[]>();
+        private final List<Integer> runIds = new ArrayList<Integer>();
+        private final List<Integer> runSuites = new ArrayList<Integer>();
+        //run ordinal + 1 per automation id ordinal, for each configuration
+        private final List<int[]> configRuns = new ArrayList<int[]>();
+
+        /**
+         * @param expectedSize expected number of automation ids
+         */
+        Builder(int expectedSize) {
+            automationIds = new StringIntMap(expectedSize, NOT_FOUND);
+            configRuns.add(new int[16]); //runs without a configuration
+        }
+
+        /**
+         * Adds a case, unless a case with the same automation id was already added to the suite
+         *
+         * @return id of the case already added with the same automation id to the suite, or 0
+         */
+        int addCase(int suiteId, String automationId, int caseId) {
+            int suite = suiteOrdinal(suiteId);
+            int ordinal = intern(automationId);
+            int[] caseIds = suiteCaseIds.get(suite);
+            if (ordinal >= caseIds.length) {
+                caseIds = Arrays.copyOf(caseIds, Math.max(ordinal + 1, caseIds.length * 2));
+                suiteCaseIds.set(suite, caseIds);
+            }
+            int existing = caseIds[ordinal];
+            if (existing == 0) {
+                caseIds[ordinal] = caseId;
+            }
+            return existing;
+        }
+
+        /**
+         * Adds the tests of a run. Tests without an automation id are ignored, and so are tests
+         * whose automation id was already added for another run with the same configuration (e.g.
+         * in runs of two suites), whose results keep going to that run.
+         *
+         * @param runId id of the run
+         * @param suiteId id of the suite the run belongs to
+         * @param config configuration of the run, can be null
+         * @param tests tests in the run
+         * @return id of the run already added with the same configuration, per automation id of the
+         *          tests that were ignored for that reason
+         */
+        Map<String, Integer> addTests(int runId, int suiteId, String config, List<Test> tests) {
+            int configOrdinal = 0;
+            if (config != null) {
+                configOrdinal = configs.get(config);
+                if (configOrdinal == NOT_FOUND) {
+                    configOrdinal = configs.size() + 1;
+                    configs.putIfAbsent(config, configOrdinal);
+                    configRuns.add(new int[16]);
+                }
+            }
+            int run = runIds.size();
+            runIds.add(runId);
+            runSuites.add(suiteOrdinal(suiteId));
+
+            Map<String, Integer> duplicates = Collections.emptyMap();
+            for (Test test : tests) {
+                if (test.automationId == null || test.automationId.isEmpty()) {
+                    continue;
+                }
+                int ordinal = intern(test.automationId);
+                int[] runs = configRuns.get(configOrdinal);
+                if (ordinal >= runs.length) {
+                    runs = Arrays.copyOf(runs, Math.max(ordinal + 1, runs.length * 2));
+                    configRuns.set(configOrdinal, runs);
+                }
+                int existing = runs[ordinal];
+                if (existing == 0) {
+                    runs[ordinal] = run + 1;
+                } else if (existing != run + 1) {
+                    if (duplicates.isEmpty()) {
+                        duplicates = new LinkedHashMap<String, Integer>();
+                    }
+                    duplicates.put(test.automationId, runIds.get(existing - 1));
+                }
+            }
+            return duplicates;
+        }
+
+        PlanIndex build() {
+            int size = automationIds.size();
+            int configCount = configs.size() + 1;
+            int[] runs = new int[size * configCount];
+            for (int config = 0; config < configCount; config++) {
+                int[] configRunOrdinals = configRuns.get(config);
+                for (int ordinal = 0; ordinal < Math.min(size, configRunOrdinals.length); ordinal++) {
+                    runs[ordinal * configCount + config] = configRunOrdinals[ordinal];
+                }
+            }
+            int suiteCount = suiteIds.size();
+            int[] caseIds = new int[size * suiteCount];
+            for (int suite = 0; suite < suiteCount; suite++) {
+                int[] suiteCases = suiteCaseIds.get(suite);
+                for (int ordinal = 0; ordinal < Math.min(size, suiteCases.length); ordinal++) {
+                    caseIds[ordinal * suiteCount + suite] = suiteCases[ordinal];
+                }
+            }
+            return new PlanIndex(this, runs, caseIds);
+        }
+
+        private int suiteOrdinal(int suiteId) {
+            int suite = suiteIds.indexOf(suiteId);
+            if (suite < 0) {
+                suite = suiteIds.size();
+                suiteIds.add(suiteId);
+                suiteCaseIds.add(new int[16]);
+            }
+            return suite;
+        }
+
+        private int intern(String automationId) {
+            int ordinal = automationIds.size();
+            int existing = automationIds.putIfAbsent(automationId, ordinal);
+            return existing != NOT_FOUND ? existing : ordinal;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.nullin.testrail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.nullin.testrail.client.ApiMetrics;
+import com.nullin.testrail.client.EndpointMetrics;
+import com.nullin.testrail.metrics.EndpointStats;
+import com.nullin.testrail.metrics.StripedCounter;
+import com.nullin.testrail.metrics.TestRailMetricsMXBean;
+
+/**
+ * Metrics of the {@link TestRailReporter} and of the requests it makes to TestRail.
+ *
+ * Counters are updated by the threads reporting results and by the result sender, without
+ * locking or allocating. The metrics can be read over JMX or logged as a snapshot.
+ *
+ * @author nullin
+ */
+class ReporterMetrics implements TestRailMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.nullin.testrail:type=TestRailReporter";
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private Logger logger = Logger.getLogger(ReporterMetrics.class.getName());
+    private final ApiMetrics apiMetrics;
+    final StripedCounter reported = new StripedCounter();
+    final StripedCounter failed = new StripedCounter();
+    final StripedCounter dropped = new StripedCounter();
+    //incremented when a result is queued, decremented once it has been sent (or failed to)
+    final StripedCounter queued = new StripedCounter();
+    volatile long initDurationMillis;
+
+    ReporterMetrics(ApiMetrics apiMetrics) {
+        this.apiMetrics = apiMetrics;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server. Failures are only logged, e.g. when
+     * another instance of the reporter is already registered by a different class loader.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (Exception ex) {
+            logger.warning("Failed to register " + OBJECT_NAME + " MBean. Ran into exception " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public long getResultsReported() {
+        return reported.sum();
+    }
+
+    @Override
+    public long getResultsFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getResultsDropped() {
+        return dropped.sum();
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return queued.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return apiMetrics.getBytesSent();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return apiMetrics.getBytesReceived();
+    }
+
+    @Override
+    public long getBytesSaved() {
+        return apiMetrics.getBytesSaved();
+    }
+
+    @Override
+    public long getInitDurationMillis() {
+        return initDurationMillis;
+    }
+
+    @Override
+    public List<EndpointStats> getEndpoints() {
+        List<EndpointStats> stats = new ArrayList<EndpointStats>();
+        for (EndpointMetrics endpoint : apiMetrics.getEndpoints()) {
+            stats.add(EndpointStats.of(endpoint.getName(), endpoint.getRequests(), endpoint.getErrors(),
+                    endpoint.getThrottled(), endpoint.getLatency()));
+        }
+        return stats;
+    }
+
+    /**
+     * @return snapshot of the metrics as a readable summary
+     */
+    String getSummary() {
+        StringBuilder summary = new StringBuilder("TestRail reporter metrics:\n");
+        summary.append("- results: ").append(getResultsReported()).append(" reported, ")
+                .append(getResultsFailed()).append(" failed, ").append(getResultsDropped()).append(" dropped, ")
+                .append(getQueueDepth()).append(" queued\n");
+        summary.append("- bytes: ").append(getBytesSent()).append(" sent, ")
+                .append(getBytesReceived()).append(" received, ")
+                .append(getBytesSaved()).append(" saved by compression\n");
+        summary.append("- init: ").append(getInitDurationMillis()).append("ms\n");
+        for (EndpointStats endpoint : getEndpoints()) {
+            summary.append("- ").append(endpoint).append('\n');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Writes a snapshot of the metrics to the file as JSON, replacing any previous snapshot
+     */
+    void writeSnapshot(File file) throws IOException {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("resultsReported", getResultsReported());
+        snapshot.put("resultsFailed", getResultsFailed());
+        snapshot.put("resultsDropped", getResultsDropped());
+        snapshot.put("queueDepth", getQueueDepth());
+        snapshot.put("bytesSent", getBytesSent());
+        snapshot.put("bytesReceived", getBytesReceived());
+        snapshot.put("bytesSaved", getBytesSaved());
+        snapshot.put("initDurationMillis", getInitDurationMillis());
+        snapshot.put("endpoints", getEndpoints());
+        OBJECT_MAPPER.writeValue(file, snapshot);
+    }
+}
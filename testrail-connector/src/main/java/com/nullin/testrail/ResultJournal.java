@@ -0,0 +1,467 @@
+package com.nullin.testrail;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.nullin.testrail.client.request.ResultRequest;
+
+/**
+ * Append-only on-disk journal of results to be reported to TestRail.
+ *
+ * Each result is recorded before it is sent and an acknowledgement is recorded once TestRail
+ * has accepted it, so that results that were never delivered (because the JVM crashed or
+ * TestRail was unavailable) can be replayed later using {@link #readPending(java.io.File)}.
+ *
+ * Records are length prefixed and check-summed:
+ * <pre>
+ *     [int length][int crc32][byte type][long sequence][long millis][int runId][result json] (type RESULT)
+ *     [int length][int crc32][byte type][long sequence]                                    (type ACK)
+ * </pre>
+ * where length and crc cover everything after the crc, and millis is the time the result was
+ * recorded. A record that is incomplete or fails the checksum marks the end of the journal
+ * (e.g. a write torn by a crash).
+ *
+ * Callers only encode the record and queue it. A background thread writes the queued records
+ * and syncs them to disk in groups, at most once per sync interval unless a result is being
+ * waited for, in which case it is synced right away, along with the records queued since the
+ * previous sync. A result must not be sent before {@link #awaitDurable(long)} returns for it,
+ * so that it can't be lost if the JVM crashes (it is written ahead). Once a write fails,
+ * nothing more is written: waiting for results fails and acknowledgements are ignored. When
+ * the journal is closed with no pending results, it is truncated, unless it is to be kept (e.g. to
+ * replay the traffic of a test run using {@link #readAll(java.io.File)}).
+ *
+ * @author nullin
+ */
+public class ResultJournal implements Closeable {
+
+    private static final int MAGIC = 0x54524a31; //"TRJ1"
+    private static final int HEADER_LENGTH = 4;
+    private static final byte TYPE_RESULT = 1;
+    private static final byte TYPE_ACK = 2;
+    //marker used to stop the writer thread
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+    //marker used to have the writer thread sync the queued records right away
+    private static final ByteBuffer SYNC_MARKER = ByteBuffer.allocate(0);
+    //how long to wait for a result to be synced, on top of the sync interval
+    private static final long DURABLE_TIMEOUT_MILLIS = 30000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    private Logger logger = Logger.getLogger(ResultJournal.class.getName());
+    private final File file;
+    private final FileChannel channel;
+    private final long syncIntervalMillis;
+    //if the journal isn't truncated on close
+    private final boolean keep;
+    private final AtomicLong sequence;
+    private final AtomicLong pending;
+    private final BlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<ByteBuffer>();
+    private final Thread writer;
+    private volatile boolean closed;
+    //orders the sequence numbers of the queued results
+    private final Object appendLock = new Object();
+
+    //all the state below is guarded by this lock
+    private final Object durableLock = new Object();
+    //highest sequence number of the results synced to disk
+    private long durableSequence;
+    //set once a write fails
+    private IOException failure;
+
+    private ResultJournal(File file, FileChannel channel, long syncIntervalMillis, boolean keep, long lastSequence,
+                          long pending) {
+        this.file = file;
+        this.channel = channel;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.keep = keep;
+        this.sequence = new AtomicLong(lastSequence);
+        this.durableSequence = lastSequence;
+        this.pending = new AtomicLong(pending);
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeRecords();
+            }
+        }, "testrail-result-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens the journal for appending, creating it if needed. Any incomplete record at the end
+     * of an existing journal is discarded.
+     *
+     * @param file journal file
+     * @param syncIntervalMillis min time between two syncs to disk, unless a result is being waited for
+     * @return the opened journal
+     */
+    public static ResultJournal open(File file, long syncIntervalMillis) throws IOException {
+        return open(file, syncIntervalMillis, false);
+    }
+
+    /**
+     * Opens the journal for appending, creating it if needed. Any incomplete record at the end
+     * of an existing journal is discarded.
+     *
+     * @param file journal file
+     * @param syncIntervalMillis min time between two syncs to disk, unless a result is being waited for
+     * @param keep if the journal is kept when closed with no pending results, instead of being truncated
+     * @return the opened journal
+     */
+    public static ResultJournal open(File file, long syncIntervalMillis, boolean keep) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            JournalState state = scan(file, false);
+            if (state.validLength < HEADER_LENGTH) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.putInt(MAGIC).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                state.validLength = HEADER_LENGTH;
+            } else {
+                channel.truncate(state.validLength);
+            }
+            channel.position(state.validLength);
+            return new ResultJournal(file, channel, syncIntervalMillis, keep, state.lastSequence,
+                    state.pending.size());
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the results that were recorded, but never acknowledged
+     *
+     * @param file journal file
+     * @return pending results in the order they were recorded
+     */
+    public static List<Entry> readPending(File file) throws IOException {
+        return new ArrayList<Entry>(scan(file, true).pending.values());
+    }
+
+    /**
+     * Reads all the results that were recorded, acknowledged or not, e.g. to replay the traffic of a
+     * test run. Only journals that were kept have the results that were acknowledged.
+     *
+     * @param file journal file
+     * @return results in the order they were recorded
+     */
+    public static List<Entry> readAll(File file) throws IOException {
+        return scan(file, true).recorded;
+    }
+
+    /**
+     * Records a result that is about to be sent to TestRail
+     *
+     * @param runId run id the result belongs to
+     * @param result result body, including the {@code case_id}
+     * @return sequence number to be used to acknowledge the result
+     */
+    public long append(int runId, ResultRequest result) throws IOException {
+        checkFailure();
+        byte[] json = OBJECT_MAPPER.writeValueAsBytes(result);
+        ByteBuffer record = ByteBuffer.allocate(8 + 1 + 8 + 8 + 4 + json.length);
+        record.position(8);
+        long seq;
+        //results are queued in the order of their sequence numbers, see writeRecords
+        synchronized (appendLock) {
+            seq = sequence.incrementAndGet();
+            record.put(TYPE_RESULT).putLong(seq).putLong(System.currentTimeMillis()).putInt(runId).put(json);
+            enqueue(record);
+        }
+        pending.incrementAndGet();
+        return seq;
+    }
+
+    /**
+     * Waits for a result to be synced to disk. The queued records are synced right away.
+     *
+     * @param seq sequence number returned by {@link #append(int, com.nullin.testrail.client.request.ResultRequest)}
+     * @throws IOException if the journal failed to write it, or didn't sync it in time
+     */
+    public void awaitDurable(long seq) throws IOException {
+        long deadline = System.currentTimeMillis() + syncIntervalMillis + DURABLE_TIMEOUT_MILLIS;
+        synchronized (durableLock) {
+            if (durableSequence < seq) {
+                queue.add(SYNC_MARKER);
+            }
+            while (durableSequence < seq) {
+                checkFailure();
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IOException("Timed out waiting for result " + seq + " to be synced to result journal " +
+                            file);
+                }
+                try {
+                    durableLock.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for result " + seq +
+                            " to be synced to result journal " + file);
+                }
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        synchronized (durableLock) {
+            if (failure != null) {
+                throw new IOException("Result journal " + file + " failed to write records", failure);
+            }
+        }
+    }
+
+    /**
+     * Records that the result with the given sequence number has been accepted by TestRail
+     *
+     * @param seq sequence number returned by {@link #append(int, com.nullin.testrail.client.request.ResultRequest)}
+     */
+    public void ack(long seq) {
+        synchronized (durableLock) {
+            if (failure != null) {
+                return;
+            }
+        }
+        ByteBuffer record = ByteBuffer.allocate(8 + 1 + 8);
+        record.position(8);
+        record.put(TYPE_ACK).putLong(seq);
+        enqueue(record);
+        pending.decrementAndGet();
+    }
+
+    /**
+     * @return number of results recorded but not yet acknowledged
+     */
+    public long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Writes all queued records and closes the journal. The journal is truncated if
+     * there are no pending results, unless it is to be kept.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(CLOSE_MARKER);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            checkFailure();
+            if (pending.get() == 0) {
+                if (!keep) {
+                    channel.truncate(HEADER_LENGTH);
+                    channel.force(false);
+                }
+            } else {
+                logger.warning(pending.get() + " results were not acknowledged by TestRail. These can be replayed " +
+                        "from " + file.getAbsolutePath());
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void enqueue(ByteBuffer record) {
+        if (closed) {
+            throw new IllegalStateException("Result journal " + file + " is already closed");
+        }
+        //fill in the length and crc, that precede the contents
+        int length = record.position() - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length);
+        record.putInt(0, length).putInt(4, (int) crc.getValue());
+        record.flip();
+        queue.add(record);
+    }
+
+    private void writeRecords() {
+        List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+        long lastSyncMillis = 0;
+        boolean stop = false;
+        while (!stop) {
+            try {
+                //give other threads some time to queue up records, so that we sync them together,
+                //unless a result is being waited for
+                ByteBuffer record = queue.take();
+                while (record != null && record != CLOSE_MARKER && record != SYNC_MARKER) {
+                    batch.add(record);
+                    long wait = lastSyncMillis + syncIntervalMillis - System.currentTimeMillis();
+                    record = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+                stop = record == CLOSE_MARKER;
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+            List<ByteBuffer> queued = new ArrayList<ByteBuffer>();
+            queue.drainTo(queued);
+            for (ByteBuffer record : queued) {
+                if (record == CLOSE_MARKER) {
+                    stop = true;
+                } else if (record != SYNC_MARKER) {
+                    batch.add(record);
+                }
+            }
+
+            boolean failed;
+            synchronized (durableLock) {
+                failed = failure != null;
+            }
+            if (!failed && !batch.isEmpty()) {
+                writeBatch(batch);
+            }
+            lastSyncMillis = System.currentTimeMillis();
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<ByteBuffer> batch) {
+        //results are queued in order, so all the results up to the last one in the batch are written
+        long lastResultSequence = 0;
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+            if (buffer.get(8) == TYPE_RESULT) {
+                lastResultSequence = buffer.getLong(9);
+            }
+        }
+        try {
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            channel.force(false);
+            synchronized (durableLock) {
+                durableSequence = Math.max(durableSequence, lastResultSequence);
+                durableLock.notifyAll();
+            }
+        } catch (IOException ex) {
+            logger.severe("Failed to write " + batch.size() + " records to result journal " + file +
+                    ", results are no longer journaled. Ran into exception " + ex.getMessage());
+            synchronized (durableLock) {
+                failure = ex;
+                durableLock.notifyAll();
+            }
+        }
+    }
+
+    private static JournalState scan(File file, boolean decodeResults) throws IOException {
+        JournalState state = new JournalState();
+        if (!file.exists() || file.length() < HEADER_LENGTH) {
+            return state;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(new RandomAccessFile(file, "r").getChannel())));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a TestRail result journal");
+            }
+            state.validLength = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[256];
+            while (true) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length < 9 || length > file.length()) {
+                        break; //garbage at the end
+                    }
+                    if (record.length < length) {
+                        record = new byte[Math.max(length, record.length * 2)];
+                    }
+                    in.readFully(record, 0, length);
+                } catch (EOFException ex) {
+                    break; //incomplete record
+                }
+                crc.reset();
+                crc.update(record, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(record, 0, length);
+                byte type = buffer.get();
+                long seq = buffer.getLong();
+                if (type == TYPE_RESULT) {
+                    Entry entry = null;
+                    if (decodeResults) {
+                        long recordedMillis = buffer.getLong();
+                        int runId = buffer.getInt();
+                        ResultRequest result = OBJECT_MAPPER.readValue(record, buffer.position(),
+                                buffer.remaining(), ResultRequest.class);
+                        entry = new Entry(seq, recordedMillis, runId, result);
+                    }
+                    state.pending.put(seq, entry);
+                    if (decodeResults) {
+                        state.recorded.add(entry);
+                    }
+                } else if (type == TYPE_ACK) {
+                    state.pending.remove(seq);
+                }
+                state.lastSequence = Math.max(state.lastSequence, seq);
+                state.validLength += 8 + length;
+            }
+        } finally {
+            in.close();
+        }
+        return state;
+    }
+
+    private static class JournalState {
+        long validLength;
+        long lastSequence;
+        Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+        //all the results, only when decoded
+        List<Entry> recorded = new ArrayList<Entry>();
+    }
+
+    /**
+     * A result recorded in the journal
+     */
+    public static class Entry {
+        public final long sequence;
+        //time the result was recorded
+        public final long recordedMillis;
+        public final int runId;
+        public final ResultRequest result;
+
+        Entry(long sequence, long recordedMillis, int runId, ResultRequest result) {
+            this.sequence = sequence;
+            this.recordedMillis = recordedMillis;
+            this.runId = runId;
+            this.result = result;
+        }
+    }
+}
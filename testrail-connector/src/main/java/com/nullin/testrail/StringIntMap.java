@@ -0,0 +1,101 @@
+package com.nullin.testrail;
+
+/**
+ * Open addressing hash map from non-null strings to primitive ints, using linear probing.
+ *
+ * Avoids the boxed values and entry objects of a {@link java.util.HashMap}, and lookups don't
+ * allocate, as {@link String#hashCode()} is cached by the string itself. Not thread safe.
+ *
+ * @author nullin
+ */
+class StringIntMap {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    //value returned for keys that aren't in the map
+    private final int missingValue;
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    /**
+     * @param expectedSize number of keys expected, to avoid resizing
+     * @param missingValue value returned by {@link #get(String)} for keys that aren't present
+     */
+    StringIntMap(int expectedSize, int missingValue) {
+        this.missingValue = missingValue;
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new int[capacity];
+    }
+
+    /**
+     * @return value associated with the key or the missing value
+     */
+    int get(String key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+            String k = keys[i];
+            if (k == null) {
+                return missingValue;
+            }
+            if (k.equals(key)) {
+                return values[i];
+            }
+        }
+    }
+
+    /**
+     * Associates the value with the key, unless the key is already present
+     *
+     * @return value already associated with the key or the missing value, if the
+     *          key was added
+     */
+    int putIfAbsent(String key, int value) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (String k = keys[i]; k != null; k = keys[i]) {
+            if (k.equals(key)) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize();
+        }
+        return missingValue;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length << 1];
+        values = new int[oldValues.length << 1];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = slot(oldKeys[j], mask);
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(String key, int mask) {
+        //spread the bits, as string hash codes of similar keys only differ in the low bits
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
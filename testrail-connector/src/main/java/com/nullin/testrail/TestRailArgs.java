@@ -3,6 +3,8 @@ package com.nullin.testrail;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.nullin.testrail.client.ConnectionConfig;
+
 /**
  * Arguments for {@link com.nullin.testrail.TestRailListener}
  *
@@ -22,6 +24,34 @@ public class TestRailArgs {
     private String username;
     //password to login to TestRail
     private String password;
+    //if results should be queued and sent in batches from a background thread
+    private boolean asyncReporting;
+    //max number of results sent in a single add_results_for_cases call
+    private int batchSize;
+    //max time (ms) a queued result waits before being sent
+    private long flushIntervalMillis;
+    //number of threads used to load tests and cases from TestRail during startup
+    private int preloadThreads;
+    //if the test plan is loaded in the background, while tests start executing
+    private boolean asyncInit;
+    //HTTP connection pool and timeout settings
+    private ConnectionConfig connectionConfig;
+    //file to journal results to before they are sent (if any)
+    private String journalFile;
+    //min time (ms) between two syncs of the journal to disk
+    private long journalSyncIntervalMillis;
+    //if the journal is kept once all its results are delivered, e.g. to replay the traffic of the run
+    private boolean journalKeep;
+    //max stack frames rendered per exception in a result comment, 0 for no limit
+    private int stackTraceMaxFrames;
+    //max size (UTF-8 bytes) of a result comment, 0 for no limit
+    private int commentMaxBytes;
+    //if the stack trace of a failure is only reported for the first result with the same fingerprint in a run
+    private boolean dedupeFailures;
+    //number of frames included in the fingerprint of a failure
+    private int fingerprintFrames;
+    //file to write a JSON snapshot of the reporter metrics to when a suite finishes (if any)
+    private String metricsFile;
 
     private TestRailArgs() {}
 
@@ -72,9 +102,69 @@ public class TestRailArgs {
             throw new IllegalArgumentException("TestRail password not specified (testRail.password)");
         }
 
+        args.asyncReporting = Boolean.valueOf(System.getProperty("testRail.asyncReporting"));
+        args.batchSize = getIntProperty("testRail.batchSize", 100);
+        args.flushIntervalMillis = getIntProperty("testRail.flushIntervalMs", 5000);
+        args.preloadThreads = getIntProperty("testRail.preloadThreads", 8);
+        args.asyncInit = Boolean.valueOf(System.getProperty("testRail.asyncInit"));
+        args.journalFile = System.getProperty("testRail.journalFile");
+        args.journalSyncIntervalMillis = getIntProperty("testRail.journalSyncIntervalMs", 200, 0);
+        args.journalKeep = Boolean.valueOf(System.getProperty("testRail.journalKeep"));
+        args.stackTraceMaxFrames = getIntProperty("testRail.stackTraceMaxFrames", 100, 0);
+        args.commentMaxBytes = getIntProperty("testRail.commentMaxBytes", 65536, 0);
+        args.dedupeFailures = Boolean.valueOf(System.getProperty("testRail.dedupeFailures"));
+        args.fingerprintFrames = getIntProperty("testRail.fingerprintFrames", 10);
+        args.metricsFile = System.getProperty("testRail.metricsFile");
+
+        ConnectionConfig connectionConfig = new ConnectionConfig();
+        connectionConfig.setMaxConnections(
+                getIntProperty("testRail.maxConnections", connectionConfig.getMaxConnections()));
+        connectionConfig.setMaxConnectionsPerRoute(
+                getIntProperty("testRail.maxConnectionsPerRoute", connectionConfig.getMaxConnectionsPerRoute()));
+        connectionConfig.setKeepAliveMillis(
+                getIntProperty("testRail.keepAliveMs", (int) connectionConfig.getKeepAliveMillis()));
+        connectionConfig.setIdleTimeoutMillis(
+                getIntProperty("testRail.idleConnectionTimeoutMs", (int) connectionConfig.getIdleTimeoutMillis()));
+        connectionConfig.setConnectTimeoutMillis(
+                getIntProperty("testRail.connectTimeoutMs", connectionConfig.getConnectTimeoutMillis()));
+        connectionConfig.setSocketTimeoutMillis(
+                getIntProperty("testRail.socketTimeoutMs", connectionConfig.getSocketTimeoutMillis()));
+        connectionConfig.setConnectionRequestTimeoutMillis(getIntProperty("testRail.connectionRequestTimeoutMs",
+                connectionConfig.getConnectionRequestTimeoutMillis()));
+        connectionConfig.setMaxRequestsPerSecond(getIntProperty("testRail.maxRequestsPerSecond",
+                (int) connectionConfig.getMaxRequestsPerSecond(), 0));
+        connectionConfig.setMaxConcurrentRequests(
+                getIntProperty("testRail.maxConcurrentRequests", connectionConfig.getMaxConcurrentRequests()));
+        connectionConfig.setMaxRetries(getIntProperty("testRail.maxRetries", connectionConfig.getMaxRetries(), 0));
+        connectionConfig.setCompressResponses(Boolean.valueOf(System.getProperty("testRail.compressResponses",
+                String.valueOf(connectionConfig.isCompressResponses()))));
+        connectionConfig.setCompressRequestsMinBytes(getIntProperty("testRail.compressRequestsMinBytes",
+                connectionConfig.getCompressRequestsMinBytes(), 0));
+        args.connectionConfig = connectionConfig;
+
         return args;
     }
 
+    private static int getIntProperty(String name, int defaultValue) {
+        return getIntProperty(name, defaultValue, 1);
+    }
+
+    private static int getIntProperty(String name, int defaultValue, int minValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue < minValue) {
+                throw new IllegalArgumentException(name + " should be an integer >= " + minValue);
+            }
+            return intValue;
+        } catch(NumberFormatException ex) {
+            throw new IllegalArgumentException(name + " is not an integer as expected");
+        }
+    }
+
     public Boolean getEnabled() {
         return enabled;
     }
@@ -98,4 +188,60 @@ public class TestRailArgs {
     public String getPassword() {
         return password;
     }
+
+    public boolean isAsyncReporting() {
+        return asyncReporting;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    public int getPreloadThreads() {
+        return preloadThreads;
+    }
+
+    public boolean isAsyncInit() {
+        return asyncInit;
+    }
+
+    public String getJournalFile() {
+        return journalFile;
+    }
+
+    public long getJournalSyncIntervalMillis() {
+        return journalSyncIntervalMillis;
+    }
+
+    public boolean isJournalKeep() {
+        return journalKeep;
+    }
+
+    public int getStackTraceMaxFrames() {
+        return stackTraceMaxFrames;
+    }
+
+    public int getCommentMaxBytes() {
+        return commentMaxBytes;
+    }
+
+    public boolean isDedupeFailures() {
+        return dedupeFailures;
+    }
+
+    public int getFingerprintFrames() {
+        return fingerprintFrames;
+    }
+
+    public String getMetricsFile() {
+        return metricsFile;
+    }
+
+    public ConnectionConfig getConnectionConfig() {
+        return connectionConfig;
+    }
 }
@@ -10,6 +10,8 @@ import java.util.logging.Logger;
 
 import com.nullin.testrail.annotations.TestRailCase;
 import org.testng.IConfigurationListener;
+import org.testng.ISuite;
+import org.testng.ISuiteListener;
 import org.testng.ITestContext;
 import org.testng.ITestListener;
 import org.testng.ITestResult;
@@ -20,7 +22,7 @@ import org.testng.annotations.Test;
  *
  * @author nullin
  */
-public class TestRailListener implements ITestListener, IConfigurationListener {
+public class TestRailListener implements ITestListener, IConfigurationListener, ISuiteListener {
 
     private Logger logger = Logger.getLogger(TestRailListener.class.getName());
 
@@ -54,77 +56,95 @@ public class TestRailListener implements ITestListener, IConfigurationListener {
         }
 
         try {
-            Method method = result.getMethod().getConstructorOrMethod().getMethod();
-            String className = result.getTestClass().getName();
-            String methodName = result.getMethod().getMethodName();
-            String id = className + "#" + methodName;
-            Object[] params = result.getParameters();
-            String firstParam = null;
-            if (params != null && params.length > 0) {
-                id += "(" + params[0] + ")";
-                firstParam = String.valueOf(params[0]);
+            String automationId = getAutomationId(result);
+            if (automationId == null) {
+                return; //nothing more to do
             }
-            int status = result.getStatus();
-            Throwable throwable = result.getThrowable();
-
-            TestRailCase trCase = method.getAnnotation(TestRailCase.class);
-            Test test = method.getAnnotation(Test.class);
-            String automationId;
-            if (trCase == null) {
-                if (null != test.dataProvider() && !test.dataProvider().isEmpty()) {
-                    if (firstParam == null) {
-                        logger.severe("Didn't find the first parameter for DD test " + id + ". Result not reported.");
-                        return; //nothing more to do
-                    }
-                    automationId = firstParam;
-                } else {
-                    logger.severe(String.format("Test case %s is not annotated with TestRailCase annotation. " +
-                            "Result not reported", id));
-                    return; //nothing more to do
+            reporter.reportResult(automationId, getResultProperties(result));
+        } catch(Exception ex) {
+            //only log and do nothing else
+            logger.severe("Ran into exception " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @param result TestNG test result
+     * @return automation id of the test or null if the result shouldn't be reported
+     */
+    String getAutomationId(ITestResult result) {
+        Method method = result.getMethod().getConstructorOrMethod().getMethod();
+        String className = result.getTestClass().getName();
+        String methodName = result.getMethod().getMethodName();
+        String id = className + "#" + methodName;
+        Object[] params = result.getParameters();
+        String firstParam = null;
+        if (params != null && params.length > 0) {
+            id += "(" + params[0] + ")";
+            firstParam = String.valueOf(params[0]);
+        }
+
+        TestRailCase trCase = method.getAnnotation(TestRailCase.class);
+        Test test = method.getAnnotation(Test.class);
+        String automationId;
+        if (trCase == null) {
+            if (null != test.dataProvider() && !test.dataProvider().isEmpty()) {
+                if (firstParam == null) {
+                    logger.severe("Didn't find the first parameter for DD test " + id + ". Result not reported.");
+                    return null; //nothing more to do
                 }
+                automationId = firstParam;
             } else {
-                automationId = trCase.value();
+                logger.severe(String.format("Test case %s is not annotated with TestRailCase annotation. " +
+                        "Result not reported", id));
+                return null; //nothing more to do
             }
+        } else {
+            automationId = trCase.value();
+        }
 
-            if (automationId == null || automationId.isEmpty()) {
-                //case id not specified on method, check if this is a DD method
-                if (!trCase.selfReporting()) {
-                    //self reporting test cases are responsible of reporting results on their own
-                    logger.warning("Didn't find automation id nor is the test self reporting for test " + id +
-                            ". Please check test configuration.");
-                    return; //nothing more to do
-                } else {
-                    return; //nothing to do as the test is marked as self reporting
-                }
+        if (automationId == null || automationId.isEmpty()) {
+            //case id not specified on method, check if this is a DD method
+            if (!trCase.selfReporting()) {
+                //self reporting test cases are responsible of reporting results on their own
+                logger.warning("Didn't find automation id nor is the test self reporting for test " + id +
+                        ". Please check test configuration.");
             }
+            return null; //nothing more to do
+        }
+        return automationId;
+    }
 
-            Map<String, Object> props = new HashMap<String, Object>();
-            long elapsed = (result.getEndMillis() - result.getStartMillis()) / 1000;
-            elapsed = elapsed == 0 ? 1 : elapsed; //we can only track 1 second as the smallest unit
-            props.put("elapsed",  elapsed + "s");
-            props.put("status", getStatus(status));
-            props.put("throwable", throwable);
-            //override if needed
-            if (status == ITestResult.SKIP) {
-                ITestResult skipResult = testSkipResult.get();
-                if (skipResult != null) {
-                    props.put("throwable", skipResult.getThrowable());
-                }
-            }
-            props.put("screenshotUrl", getScreenshotUrl(result));
-            Map<String, String> moreInfo = new LinkedHashMap<String, String>();
-            moreInfo.put("class", result.getMethod().getRealClass().getCanonicalName());
-            moreInfo.put("method", result.getMethod().getMethodName());
-            if (result.getParameters() != null) {
-                moreInfo.put("parameters", Arrays.toString(result.getParameters()));
+    /**
+     * @param result TestNG test result
+     * @return properties to be passed to {@link TestRailReporter#reportResult(String, java.util.Map)}
+     */
+    Map<String, Object> getResultProperties(ITestResult result) {
+        int status = result.getStatus();
+        Throwable throwable = result.getThrowable();
+
+        Map<String, Object> props = new HashMap<String, Object>();
+        long elapsed = (result.getEndMillis() - result.getStartMillis()) / 1000;
+        elapsed = elapsed == 0 ? 1 : elapsed; //we can only track 1 second as the smallest unit
+        props.put("elapsed",  elapsed + "s");
+        props.put("status", getStatus(status));
+        props.put("throwable", throwable);
+        //override if needed
+        if (status == ITestResult.SKIP) {
+            ITestResult skipResult = testSkipResult.get();
+            if (skipResult != null) {
+                props.put("throwable", skipResult.getThrowable());
             }
-            moreInfo.putAll(getMoreInformation(result));
-            props.put("moreInfo", moreInfo);
-            reporter.reportResult(automationId, props);
-        } catch(Exception ex) {
-            //only log and do nothing else
-            logger.severe("Ran into exception " + ex.getMessage());
         }
+        props.put("screenshotUrl", getScreenshotUrl(result));
+        Map<String, String> moreInfo = new LinkedHashMap<String, String>();
+        moreInfo.put("class", result.getMethod().getRealClass().getCanonicalName());
+        moreInfo.put("method", result.getMethod().getMethodName());
+        if (result.getParameters() != null) {
+            moreInfo.put("parameters", Arrays.toString(result.getParameters()));
+        }
+        moreInfo.putAll(getMoreInformation(result));
+        props.put("moreInfo", moreInfo);
+        return props;
     }
 
     public void onTestStart(ITestResult result) {
@@ -160,6 +180,20 @@ public class TestRailListener implements ITestListener, IConfigurationListener {
         //nothing here
     }
 
+    public void onStart(ISuite suite) {
+        //nothing here
+    }
+
+    public void onFinish(ISuite suite) {
+        if (!enabled) {
+            return; //do nothing
+        }
+        //make sure that any results queued for async delivery are sent before the suite ends
+        reporter.flush();
+        reporter.logFailureSummary();
+        reporter.logMetrics();
+    }
+
     /**
      * TestRail currently doesn't support uploading screenshots via APIs. Suggested method is
      * to upload screenshots to another server and provide a URL in the test comments.
@@ -1,24 +1,32 @@
 package com.nullin.testrail;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nullin.testrail.client.ClientException;
 import com.nullin.testrail.client.TestRailClient;
+import com.nullin.testrail.client.request.ResultRequest;
 import com.nullin.testrail.dto.Case;
 import com.nullin.testrail.dto.Plan;
 import com.nullin.testrail.dto.PlanEntry;
 import com.nullin.testrail.dto.Run;
+import com.nullin.testrail.dto.Suite;
 import com.nullin.testrail.dto.Test;
 
 /**
@@ -31,12 +39,33 @@ import com.nullin.testrail.dto.Test;
  */
 public class TestRailReporter {
 
+    //how long the shutdown hook waits for the test plan to be loaded in the background
+    private static final long SHUTDOWN_INIT_TIMEOUT_SECONDS = 60;
+
     private Logger logger = Logger.getLogger(TestRailReporter.class.getName());
     private TestRailClient client;
-    private Map<String, Integer> caseIdLookupMap;
-    private Map<String, Integer> testToRunIdMap;
-    private Boolean enabled;
+    private PlanIndex index;
+    private volatile Boolean enabled;
     private String config;
+    //ordinal of the config in the index, computed once
+    private int configOrdinal;
+    private CommentRenderer commentRenderer;
+    //only set when failures are deduplicated by fingerprint
+    private FailureGroups failureGroups;
+    //only set when results are delivered asynchronously in batches
+    private BatchingResultSender sender;
+    //only set when results are journaled before delivery
+    private ResultJournal journal;
+    private ReporterMetrics metrics;
+    //file to write a snapshot of the metrics to, if any
+    private String metricsFile;
+    //set once the index is loaded. Results reported before that are buffered.
+    private volatile boolean ready;
+    private final Object initLock = new Object();
+    private List<BufferedResult> bufferedResults = new ArrayList<BufferedResult>();
+    //number of buffered results reported once the index is loaded
+    private volatile int replayedResults;
+    private final CountDownLatch initDone = new CountDownLatch(1);
 
     //keys for the properties map that is used to pass test information into this reporter
     public static final String KEY_MORE_INFO = "moreInfo";
@@ -74,52 +103,52 @@ public class TestRailReporter {
 
         logger.info("TestRail listener is enabled. Configuring...");
         try {
-            client = new TestRailClient(args.getUrl(), args.getUsername(), args.getPassword());
-
-            //prepare the test plan and stuff
-            Plan plan = client.getPlan(args.getTestPlanId());
+            client = new TestRailClient(args.getUrl(), args.getUsername(), args.getPassword(),
+                    args.getConnectionConfig());
+            metrics = new ReporterMetrics(client.getMetrics());
+            metrics.register();
+            metricsFile = args.getMetricsFile();
 
             /*
-            We will make an assumption that the plan can contains multiple entries, but all the
-            entries would be associated with the same suite. This helps simplify the automated
-            reporting of results.
-
-            Another assumption is that a test with a given automation id will not re-appear twice
-            for the same configuration set. Multiple instances of the same configuration set
-            is possible. If same automation id and configuration set combination is repeated, the
-            result would only be reported once.
+             This should be specified when starting the JVM for test execution. It should match exactly at least
+             one of the configurations used in the test runs. This, along with the automation id of the test
+             are used to identify the run id.
              */
-            Set<Integer> suiteIdSet = new HashSet<Integer>();
-            List<PlanEntry> planEntries = plan.entries;
-
-            int projectId = 0;
-            int suiteId = 0;
-            testToRunIdMap = new HashMap<String, Integer>();
-            for (PlanEntry entry : planEntries) {
-                suiteIdSet.add(suiteId = entry.suiteId);
-                for (Run run : entry.runs) {
-                    projectId = run.projectId;
-                    List<Test> tests = client.getTests(run.id);
-                    for (Test test : tests) {
-                        testToRunIdMap.put(test.automationId + run.config, run.id);
-                    }
-                }
+            config = System.getProperty("testRail.runConfig");
+
+            if (!args.isAsyncInit()) {
+                loadIndex(args);
+                ready = true;
+                initDone.countDown();
             }
 
-            caseIdLookupMap = cacheCaseIdLookupMap(client, projectId, suiteId);
+            commentRenderer = new CommentRenderer(args.getStackTraceMaxFrames(), args.getCommentMaxBytes());
+            if (args.isDedupeFailures()) {
+                failureGroups = new FailureGroups(args.getFingerprintFrames());
+            }
 
-            //check some constraints
-            if (suiteIdSet.size() != 1) {
-                throw new IllegalStateException("Referenced plan " + plan.id + " has multiple test suites (" +
-                        suiteIdSet + "). This configuration is currently not supported.");
+            if (args.getJournalFile() != null) {
+                logger.info("Results will be journaled to " + args.getJournalFile());
+                journal = ResultJournal.open(new File(args.getJournalFile()), args.getJournalSyncIntervalMillis(),
+                        args.isJournalKeep());
+            }
+            if (args.isAsyncReporting()) {
+                logger.info("Results will be sent asynchronously in batches of up to " + args.getBatchSize());
+                sender = new BatchingResultSender(client, journal, failureGroups, metrics, args.getBatchSize(),
+                        args.getFlushIntervalMillis());
+            }
+            if (journal != null || sender != null || args.isAsyncInit()) {
+                Runtime.getRuntime().addShutdownHook(new Thread("testrail-reporter-shutdown") {
+                    @Override
+                    public void run() {
+                        shutdown();
+                    }
+                });
             }
 
-            /*
-             This should be specified when starting the JVM for test execution. It should match exactly at least
-             one of the configurations used in the test runs. This, along with the automation id of the test
-             are used to identify the run id.
-             */
-            config = System.getProperty("testRail.runConfig");
+            if (args.isAsyncInit()) {
+                startAsyncInit(args);
+            }
         } catch(Exception ex) {
             //wrap in a Runtime and throw again
             //why? because we don't want to handle it and we want
@@ -129,30 +158,210 @@ public class TestRailReporter {
     }
 
     /**
-     * Gets all the test cases associated with the test run and caches a map of the
-     * associated automation id's to the case ids
+     * Gets the test plan and loads the index used to look up case and run ids
+     */
+    private void loadIndex(TestRailArgs args) throws Exception {
+        long start = System.currentTimeMillis();
+        //prepare the test plan and stuff
+        Plan plan = client.getPlan(args.getTestPlanId());
+
+        /*
+        The plan can contain multiple entries, associated with one or more suites. If suite names are
+        specified, only the entries for those suites are indexed.
+
+        We will make an assumption that a test with a given automation id will not re-appear twice
+        for the same configuration set. Multiple instances of the same configuration set
+        is possible. If same automation id and configuration set combination is repeated, the
+        result would only be reported once.
+         */
+        int projectId = 0;
+        Map<Integer, List<Run>> runsBySuite = new LinkedHashMap<Integer, List<Run>>();
+        for (PlanEntry entry : plan.entries) {
+            List<Run> runs = runsBySuite.get(entry.suiteId);
+            if (runs == null) {
+                runsBySuite.put(entry.suiteId, runs = new ArrayList<Run>());
+            }
+            for (Run run : entry.runs) {
+                projectId = run.projectId;
+                runs.add(run);
+            }
+        }
+
+        List<String> suiteNames = args.getSuiteNames();
+        if (suiteNames != null && !suiteNames.isEmpty()) {
+            filterSuites(plan, projectId, runsBySuite, suiteNames);
+        }
+        if (runsBySuite.isEmpty()) {
+            throw new IllegalStateException("Referenced plan " + plan.id + " has no runs for the test suites " +
+                    "to be reported to");
+        }
+
+        preload(args.getPreloadThreads(), projectId, runsBySuite);
+        configOrdinal = index.getConfigOrdinal(config);
+        metrics.initDurationMillis = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Removes the runs of the suites that aren't in the list of suite names
+     */
+    private void filterSuites(Plan plan, int projectId, Map<Integer, List<Run>> runsBySuite,
+                              List<String> suiteNames) throws IOException, ClientException {
+        Set<String> missingNames = new HashSet<String>(suiteNames);
+        Set<Integer> suiteIds = new HashSet<Integer>();
+        for (Suite suite : client.getSuites(projectId)) {
+            if (suiteNames.contains(suite.name) && runsBySuite.containsKey(suite.id)) {
+                suiteIds.add(suite.id);
+                missingNames.remove(suite.name);
+            }
+        }
+        if (!missingNames.isEmpty()) {
+            logger.warning("Referenced plan " + plan.id + " has no entries for test suites " + missingNames);
+        }
+        runsBySuite.keySet().retainAll(suiteIds);
+    }
+
+    /**
+     * Loads the index in a background thread, so that it overlaps with test execution. Results reported
+     * in the meantime are buffered and reported once the index is loaded. If loading fails, reporting
+     * is disabled and buffered results are dropped.
+     */
+    private void startAsyncInit(final TestRailArgs args) {
+        logger.info("Loading test plan " + args.getTestPlanId() + " in the background");
+        Thread initThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loadIndex(args);
+                } catch (Throwable ex) {
+                    int dropped;
+                    synchronized (initLock) {
+                        enabled = false;
+                        dropped = bufferedResults.size();
+                        bufferedResults = null;
+                    }
+                    metrics.dropped.add(dropped);
+                    logger.severe("Failed to load test plan " + args.getTestPlanId() + ". Results will not be " +
+                            "reported to TestRail and " + dropped + " buffered results are dropped. Ran into " +
+                            "exception " + ex.getMessage());
+                    initDone.countDown();
+                    return;
+                }
+
+                List<BufferedResult> results;
+                synchronized (initLock) {
+                    ready = true;
+                    results = bufferedResults;
+                }
+                if (!results.isEmpty()) {
+                    logger.info("Reporting " + results.size() + " results buffered while loading the test plan");
+                }
+                for (BufferedResult result : results) {
+                    if (!enabled) {
+                        break; //abandoned on shutdown
+                    }
+                    doReportResult(result.automationId, result.properties);
+                    replayedResults++;
+                }
+                synchronized (initLock) {
+                    bufferedResults = null;
+                }
+                initDone.countDown();
+            }
+        }, "testrail-reporter-init");
+        initThread.setDaemon(true);
+        initThread.start();
+    }
+
+    /**
+     * Loads the tests for all the runs and the cases for all the suites in parallel and builds
+     * the index used to look up case and run ids when reporting results
      *
+     * @param threads max number of requests to run in parallel
      * @param projectId
-     * @param suiteId
-     * @return Map with keys as automation ids and corresponding values as the case ids.
+     * @param runsBySuite runs in the test plan per suite id
      */
-    private Map<String, Integer> cacheCaseIdLookupMap(TestRailClient client, int projectId, int suiteId)
-            throws IOException, ClientException {
-        List<Case> cases = client.getCases(projectId, suiteId, 0, null);
-        Map<String, Integer> lookupMap = new HashMap<String, Integer>();
+    private void preload(int threads, final int projectId, Map<Integer, List<Run>> runsBySuite)
+            throws Exception {
+        long start = System.currentTimeMillis();
+        List<Run> runs = new ArrayList<Run>();
+        for (List<Run> suiteRuns : runsBySuite.values()) {
+            runs.addAll(suiteRuns);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, runs.size() + runsBySuite.size()),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-preload-%d").build());
+        try {
+            Map<Integer, Future<List<Case>>> casesFutures = new LinkedHashMap<Integer, Future<List<Case>>>();
+            for (final int suiteId : runsBySuite.keySet()) {
+                casesFutures.put(suiteId, executor.submit(new Callable<List<Case>>() {
+                    @Override
+                    public List<Case> call() throws Exception {
+                        return client.getCases(projectId, suiteId, 0, null);
+                    }
+                }));
+            }
+
+            List<Future<List<Test>>> testsFutures = new ArrayList<Future<List<Test>>>();
+            for (final Run run : runs) {
+                testsFutures.add(executor.submit(new Callable<List<Test>>() {
+                    @Override
+                    public List<Test> call() throws Exception {
+                        return client.getTests(run.id);
+                    }
+                }));
+            }
+
+            try {
+                PlanIndex.Builder builder = null;
+                for (Map.Entry<Integer, Future<List<Case>>> casesFuture : casesFutures.entrySet()) {
+                    List<Case> cases = casesFuture.getValue().get();
+                    if (builder == null) {
+                        builder = new PlanIndex.Builder(cases.size());
+                    }
+                    addCases(builder, casesFuture.getKey(), cases);
+                }
+                int i = 0;
+                for (Map.Entry<Integer, List<Run>> suiteRuns : runsBySuite.entrySet()) {
+                    for (Run run : suiteRuns.getValue()) {
+                        Map<String, Integer> duplicates = builder.addTests(run.id, suiteRuns.getKey(), run.config,
+                                testsFutures.get(i++).get());
+                        for (Map.Entry<String, Integer> duplicate : duplicates.entrySet()) {
+                            logger.severe("Found tests with automation id " + duplicate.getKey() + " in runs " +
+                                    duplicate.getValue() + " & " + run.id + " with the same configuration " +
+                                    run.config + ". Results will be reported to run " + duplicate.getValue());
+                        }
+                    }
+                }
+                index = builder.build();
+            } catch (ExecutionException ex) {
+                Throwables.propagateIfInstanceOf(ex.getCause(), Exception.class);
+                throw Throwables.propagate(ex.getCause());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("Loaded tests for " + runs.size() + " runs and " + index.getCaseCount() + " cases in " +
+                runsBySuite.size() + " suites in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Adds the test cases with an automation id to the index
+     *
+     * @param builder index being built
+     * @param suiteId suite the cases belong to
+     * @param cases all the test cases in the suite
+     */
+    private void addCases(PlanIndex.Builder builder, int suiteId, List<Case> cases) {
         for (Case c : cases) {
             if (c.automationId == null || c.automationId.isEmpty()) {
                 continue; //ignore empty automation IDs
             }
 
-            if (lookupMap.get(c.automationId) != null) {
-                logger.severe("Found multiple tests cases with same automation id. " +
-                        "Case Ids " + lookupMap.get(c.automationId) + " & " + c.id);
-            } else {
-                lookupMap.put(c.automationId, c.id);
+            int existing = builder.addCase(suiteId, c.automationId, c.id);
+            if (existing != 0) {
+                logger.severe("Found multiple tests cases with same automation id in suite " + suiteId + ". " +
+                        "Case Ids " + existing + " & " + c.id);
             }
         }
-        return lookupMap;
     }
 
     /**
@@ -172,6 +381,21 @@ public class TestRailReporter {
             return; //do nothing
         }
 
+        if (!ready) {
+            synchronized (initLock) {
+                if (!ready) {
+                    if (bufferedResults != null) {
+                        bufferedResults.add(new BufferedResult(automationId, properties));
+                    }
+                    return; //reported once the index is loaded
+                }
+            }
+        }
+        doReportResult(automationId, properties);
+    }
+
+    private void doReportResult(String automationId, Map<String, Object> properties) {
+
         ResultStatus resultStatus = (ResultStatus)properties.get(KEY_STATUS);
         Throwable throwable = (Throwable)properties.get(KEY_THROWABLE);
         String elapsed = (String)properties.get(KEY_ELAPSED);
@@ -179,62 +403,169 @@ public class TestRailReporter {
         Map<String, String> moreInfo = (Map<String, String>)properties.get(KEY_MORE_INFO);
 
         try {
-            Integer caseId = caseIdLookupMap.get(automationId);
-            if (caseId == null) {
+            int ordinal = index.getOrdinal(automationId);
+            if (ordinal == PlanIndex.NOT_FOUND) {
                 logger.severe("Didn't find case id for test with automation id " + automationId);
+                metrics.dropped.increment();
                 return; //nothing more to do
             }
 
-            StringBuilder comment = new StringBuilder("More Info (if any):\n");
-            if (moreInfo != null && !moreInfo.isEmpty()) {
-                for (Map.Entry<String, String> entry: moreInfo.entrySet()) {
-                    comment.append("- ").append(entry.getKey()).append(" : ")
-                            .append('`').append(entry.getValue()).append("`\n");
-                }
-            } else {
-                comment.append("- `none`\n");
-            }
-            comment.append("\n");
-            if (screenshotUrl != null && !screenshotUrl.isEmpty()) {
-                comment.append("![](").append(screenshotUrl).append(")\n\n");
+            int run = index.getRun(ordinal, configOrdinal);
+            if (run == PlanIndex.NOT_FOUND) {
+                logger.severe("Unable to find run id for test with automation id " + automationId +
+                        " and configuration set as " + config);
+                metrics.dropped.increment();
+                return; //nothing more to do
             }
-            if (resultStatus.equals(ResultStatus.SKIP)) {
-                comment.append("Test skipped because of configuration method failure. " +
-                        "Related config error (if captured): \n\n");
-                comment.append(getStackTraceAsString(throwable));
+            int runId = index.getRunId(run);
+            int caseId = index.getCaseId(ordinal, run);
+            if (caseId == 0) {
+                logger.severe("Didn't find case id for test with automation id " + automationId + " in suite " +
+                        index.getSuiteId(run));
+                metrics.dropped.increment();
+                return; //nothing more to do
             }
-            if (resultStatus.equals(ResultStatus.FAIL)) {
-                comment.append("Test failed with following exception (if captured): \n\n");
-                comment.append(getStackTraceAsString(throwable));
+
+            String fingerprint = null;
+            int firstCaseId = 0;
+            if (failureGroups != null && throwable != null && resultStatus != ResultStatus.PASS) {
+                fingerprint = failureGroups.fingerprint(throwable);
+                firstCaseId = failureGroups.add(fingerprint, throwable, runId, automationId);
             }
 
             //add the result
-            Map<String, Object> body = new HashMap<String, Object>();
-            body.put("status_id", getStatus(resultStatus));
-            body.put("comment", new String(comment.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
-            body.put("elapsed", elapsed);
-
-            Integer runId = testToRunIdMap.get(automationId + config);
-            if (runId == null) {
-                throw new IllegalArgumentException("Unable to find run id for test with automation id "
-                        + automationId + " and configuration set as " + config);
+            ResultRequest body = new ResultRequest();
+            body.statusId = getStatus(resultStatus);
+            body.comment = commentRenderer.render(resultStatus, throwable, screenshotUrl, moreInfo,
+                    fingerprint, firstCaseId);
+            body.elapsed = elapsed;
+            if (sender != null || journal != null) {
+                //needed for bulk delivery and replay
+                body.caseId = caseId;
+            }
+            long journalSequence = 0;
+            if (journal != null) {
+                try {
+                    journalSequence = journal.append(runId, body);
+                } catch (IOException ex) {
+                    logger.severe("Failed to journal result for case " + caseId + ", reporting it anyway. " +
+                            "Ran into exception " + ex.getMessage());
+                }
+            }
+            if (sender != null) {
+                //the sender waits for the result to be journaled
+                sender.enqueue(runId, body, journalSequence, firstCaseId == 0 ? fingerprint : null);
+            } else {
+                if (journalSequence > 0) {
+                    try {
+                        journal.awaitDurable(journalSequence);
+                    } catch (IOException ex) {
+                        logger.severe("Failed to journal result for case " + caseId + ", reporting it anyway. " +
+                                "Ran into exception " + ex.getMessage());
+                    }
+                }
+                client.addResultForCase(runId, caseId, body);
+                metrics.reported.increment();
+                if (journalSequence > 0) {
+                    journal.ack(journalSequence);
+                }
+                if (fingerprint != null && firstCaseId == 0) {
+                    failureGroups.delivered(fingerprint, runId, caseId);
+                }
             }
-            client.addResultForCase(runId, caseId, body);
         } catch(Exception ex) {
             //only log and do nothing else
+            metrics.failed.increment();
             logger.severe("Ran into exception " + ex.getMessage());
         }
     }
 
-    private String getStackTraceAsString(Throwable throwable) throws UnsupportedEncodingException {
-        if (throwable == null) {
-            return "";
+    /**
+     * Waits for all results queued so far to be sent to TestRail, including results buffered
+     * while the test plan is loaded in the background. Does nothing else when results are
+     * being reported synchronously.
+     */
+    public void flush() {
+        if (!enabled) {
+            return;
+        }
+        awaitInit();
+        if (sender != null) {
+            sender.flush();
+        }
+    }
+
+    /**
+     * Logs the failures reported so far, grouped by fingerprint. Does nothing unless
+     * failures are being deduplicated.
+     */
+    public void logFailureSummary() {
+        if (enabled && failureGroups != null) {
+            String summary = failureGroups.getSummary();
+            if (summary != null) {
+                logger.info(summary);
+            }
+        }
+    }
+
+    /**
+     * Logs a snapshot of the reporter metrics and writes it to the metrics file, if one is
+     * configured. Does nothing when reporting is disabled.
+     */
+    public void logMetrics() {
+        if (!enabled || metrics == null) {
+            return;
+        }
+        logger.info(metrics.getSummary());
+        if (metricsFile != null) {
+            try {
+                metrics.writeSnapshot(new File(metricsFile));
+            } catch (IOException ex) {
+                logger.warning("Failed to write metrics to " + metricsFile + ". Ran into exception " +
+                        ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends any queued results and closes the journal. Invoked on JVM shutdown. Results still
+     * buffered if the test plan isn't loaded in time are abandoned.
+     */
+    private void shutdown() {
+        boolean initialized = false;
+        try {
+            initialized = initDone.await(SHUTDOWN_INIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!initialized) {
+            int abandoned;
+            synchronized (initLock) {
+                enabled = false;
+                abandoned = bufferedResults == null ? 0 : bufferedResults.size() - replayedResults;
+            }
+            metrics.dropped.add(abandoned);
+            logger.severe("Timed out waiting for the test plan to be loaded on shutdown. " + abandoned +
+                    " buffered results will not be reported to TestRail.");
+        }
+        if (sender != null) {
+            sender.shutdown();
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                logger.severe("Failed to close result journal. Ran into exception " + ex.getMessage());
+            }
+        }
+    }
+
+    private void awaitInit() {
+        try {
+            initDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        throwable.printStackTrace(new PrintStream(os));
-        String str = new String(os.toByteArray(), "UTF-8");
-        str = "    " + str.replace("\n", "\n    ").replace("\t", "    "); //better printing
-        return str;
     }
 
     /**
@@ -258,4 +589,16 @@ public class TestRailReporter {
         return enabled;
     }
 
+    /**
+     * A result reported before the index was loaded
+     */
+    private static class BufferedResult {
+        final String automationId;
+        final Map<String, Object> properties;
+
+        BufferedResult(String automationId, Map<String, Object> properties) {
+            this.automationId = automationId;
+            this.properties = properties;
+        }
+    }
 }
@@ -1,21 +1,48 @@
 package com.nullin.testrail.client;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.logging.Logger;
 
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 /**
  * Client to talk to TestRail API end points
@@ -24,17 +51,65 @@ import org.apache.http.message.BasicHeader;
  */
 public class APIClient {
 
-    private HttpClient httpClient;
+    private CloseableHttpClient httpClient;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private ScheduledExecutorService connectionEvictor;
+    //null if the request rate isn't limited
+    private RateLimiter rateLimiter;
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private int maxRetries;
+    //min size of a request body to compress it, 0 once the server has rejected a compressed request
+    private volatile int compressRequestsMinBytes;
+    private final ApiMetrics metrics = new ApiMetrics();
     private String url;
     private Logger logger = Logger.getLogger(APIClient.class.getName());
 
     public APIClient(String url, String user, String password) {
+        this(url, user, password, new ConnectionConfig());
+    }
+
+    public APIClient(String url, String user, String password, final ConnectionConfig config) {
         try {
             List<Header> headerList = new ArrayList<Header>();
             headerList.add(new BasicHeader("Content-Type", "application/json"));
             headerList.add(new BasicHeader("Authorization", "Basic " + getAuthorization(user, password)));
+            if (config.isCompressResponses()) {
+                headerList.add(new BasicHeader("Accept-Encoding", "gzip"));
+            }
+
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(config.getMaxConnections());
+            connectionManager.setDefaultMaxPerRoute(config.getMaxConnectionsPerRoute());
 
-            httpClient = HttpClientBuilder.create().setDefaultHeaders(headerList).build();
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(config.getConnectTimeoutMillis())
+                    .setSocketTimeout(config.getSocketTimeoutMillis())
+                    .setConnectionRequestTimeout(config.getConnectionRequestTimeoutMillis())
+                    .build();
+
+            httpClient = HttpClientBuilder.create()
+                    .setDefaultHeaders(headerList)
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    //responses are decompressed by CountingEntity, to count the bytes saved
+                    .disableContentCompression()
+                    .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+                        @Override
+                        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                            //honor the server's Keep-Alive header, if present
+                            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+                                    .getKeepAliveDuration(response, context);
+                            return duration > 0 ? duration : config.getKeepAliveMillis();
+                        }
+                    })
+                    .build();
+            startConnectionEvictor(config.getIdleTimeoutMillis());
+            if (config.getMaxRequestsPerSecond() > 0) {
+                rateLimiter = RateLimiter.create(config.getMaxRequestsPerSecond());
+            }
+            concurrencyLimiter = new AdaptiveConcurrencyLimiter(1, config.getMaxConcurrentRequests());
+            maxRetries = config.getMaxRetries();
+            compressRequestsMinBytes = config.getCompressRequestsMinBytes();
             this.url = url + "/index.php?/api/v2/";
             logger.fine("Created API client for " + url);
         } catch (Exception e) {
@@ -42,6 +117,52 @@ public class APIClient {
         }
     }
 
+    /**
+     * Periodically closes expired connections and the ones that have been idle for too long,
+     * so that we don't try to reuse connections that the server has already dropped
+     */
+    private void startConnectionEvictor(final long idleTimeoutMillis) {
+        connectionEvictor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-connection-evictor-%d").build());
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        connectionEvictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return current statistics (leased, pending, available and max connections) of the connection pool
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return current limit on the number of requests in flight, as adapted to throttling by the server
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimiter.getLimit();
+    }
+
+    /**
+     * @return request counts, latencies and bytes transferred, per end point
+     */
+    public ApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes all the pooled connections. This client can't be used after it has been closed.
+     */
+    public void close() throws IOException {
+        connectionEvictor.shutdownNow();
+        httpClient.close();
+    }
+
     private String getAuthorization(String user, String password) {
         try {
             return getBase64((user + ":" + password).getBytes("UTF-8"));
@@ -114,15 +235,175 @@ public class APIClient {
     public String invokeHttpGet(String uriSuffix) throws IOException, ClientException {
         logger.fine("Invoking " + uriSuffix);
         HttpGet httpGet = new HttpGet(url + uriSuffix);
-        return consumeResponse(httpClient.execute(httpGet));
+        return consumeResponse(execute(httpGet, uriSuffix));
+    }
+
+    /**
+     * Invokes a GET request and deserializes the response by streaming it directly
+     * into the reader
+     *
+     * @param uriSuffix end point and parameters
+     * @param reader reader for the expected response type
+     * @return the deserialized response
+     */
+    public <T> T invokeHttpGet(String uriSuffix, ObjectReader reader) throws IOException, ClientException {
+        logger.fine("Invoking " + uriSuffix);
+        HttpGet httpGet = new HttpGet(url + uriSuffix);
+        return consumeResponse(execute(httpGet, uriSuffix), reader);
     }
 
     public String invokeHttpPost(String uriSuffix, String jsonData) throws IOException, ClientException {
         logger.fine("Invoking " + uriSuffix + " with jsonData " + jsonData);
+        return consumeResponse(post(uriSuffix, jsonData));
+    }
+
+    /**
+     * Invokes a POST request and deserializes the response by streaming it directly
+     * into the reader
+     *
+     * @param uriSuffix end point and parameters
+     * @param jsonData body of the request
+     * @param reader reader for the expected response type
+     * @return the deserialized response
+     */
+    public <T> T invokeHttpPost(String uriSuffix, String jsonData, ObjectReader reader)
+            throws IOException, ClientException {
+        logger.fine("Invoking " + uriSuffix + " with jsonData " + jsonData);
+        return consumeResponse(post(uriSuffix, jsonData), reader);
+    }
+
+    /**
+     * Executes a POST request, gzip compressing the body if it's large enough. If the server doesn't
+     * support the compressed body (415), the request is sent again uncompressed, and if that isn't
+     * rejected as well, request bodies aren't compressed anymore. Other errors (e.g. a 400 for an
+     * invalid request) are returned as is, as sending the request again wouldn't help.
+     */
+    private CloseableHttpResponse post(String uriSuffix, String jsonData) throws IOException {
+        int minBytes = compressRequestsMinBytes;
+        byte[] body = jsonData.getBytes("UTF-8");
+        if (minBytes <= 0 || body.length < minBytes) {
+            return execute(createPost(uriSuffix, body, false), uriSuffix);
+        }
+
+        byte[] compressed = gzip(body);
+        CloseableHttpResponse response = execute(createPost(uriSuffix, compressed, true), uriSuffix);
+        int status = response.getStatusLine().getStatusCode();
+        if (status != 415) {
+            if (status >= 200 && status < 300) {
+                metrics.forUri(uriSuffix).recordSaved(body.length - compressed.length);
+            }
+            return response;
+        }
+
+        EntityUtils.consumeQuietly(response.getEntity());
+        response.close();
+        response = execute(createPost(uriSuffix, body, false), uriSuffix);
+        int uncompressedStatus = response.getStatusLine().getStatusCode();
+        if (uncompressedStatus != 415 && compressRequestsMinBytes > 0) {
+            logger.warning("Received status code " + status + " for a compressed request to " + uriSuffix +
+                    " that was accepted uncompressed. Request bodies will not be compressed anymore.");
+            compressRequestsMinBytes = 0;
+        }
+        return response;
+    }
+
+    private HttpPost createPost(String uriSuffix, byte[] body, boolean compressed) {
         HttpPost httpPost = new HttpPost(url + uriSuffix);
-        StringEntity reqEntity = new StringEntity(jsonData);
+        ByteArrayEntity reqEntity = new ByteArrayEntity(body, ContentType.APPLICATION_JSON);
+        if (compressed) {
+            reqEntity.setContentEncoding("gzip");
+        }
         httpPost.setEntity(reqEntity);
-        return consumeResponse(httpClient.execute(httpPost));
+        return httpPost;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        try {
+            gzip.write(data);
+        } finally {
+            gzip.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Executes the request, waiting for the rate and concurrency limiters as needed. Requests that
+     * are throttled by the server (429 or 503) are retried after the time specified by the
+     * {@code Retry-After} header or after an exponential backoff, up to the configured number
+     * of retries. The last response is returned as is once retries are exhausted.
+     *
+     * Every attempt is recorded in the metrics of the end point, and the returned response's
+     * entity counts the bytes read from it, decompressing it if it's gzip encoded.
+     */
+    private CloseableHttpResponse execute(HttpUriRequest request, String uriSuffix) throws IOException {
+        EndpointMetrics endpoint = metrics.forUri(uriSuffix);
+        long sent = 0;
+        if (request instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntity entity = ((HttpEntityEnclosingRequestBase) request).getEntity();
+            sent = entity == null ? 0 : entity.getContentLength();
+        }
+        for (int attempt = 0; ; attempt++) {
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            try {
+                concurrencyLimiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting to invoke " + request.getURI());
+            }
+
+            CloseableHttpResponse response;
+            long start = System.nanoTime();
+            try {
+                response = httpClient.execute(request);
+            } catch (IOException e) {
+                endpoint.recordRequest(System.nanoTime() - start, 0, sent);
+                concurrencyLimiter.release();
+                throw e;
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            endpoint.recordRequest(System.nanoTime() - start, status, sent);
+            boolean throttled = status == 429 || status == 503;
+            concurrencyLimiter.release(throttled);
+            if (!throttled || attempt >= maxRetries) {
+                if (response.getEntity() != null) {
+                    response.setEntity(new CountingEntity(response.getEntity(), endpoint));
+                }
+                return response;
+            }
+
+            long delay = getRetryDelayMillis(response, attempt);
+            logger.warning("Received status code " + status + " for " + request.getURI() +
+                    ". Retrying in " + delay + "ms");
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            concurrencyLimiter.pauseUntil(System.currentTimeMillis() + delay);
+        }
+    }
+
+    /**
+     * @return time to wait before retrying a throttled request, as specified by the
+     *          {@code Retry-After} header or based on the number of attempts so far
+     */
+    static long getRetryDelayMillis(HttpResponse response, int attempt) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            String value = retryAfter.getValue().trim();
+            try {
+                return Math.max(0, Long.parseLong(value) * 1000);
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(value);
+                if (date != null) {
+                    return Math.max(0, date.getTime() - System.currentTimeMillis());
+                }
+            }
+        }
+        //exponential backoff starting at 1s, capped at a minute
+        return Math.min(60000, 1000L << Math.min(attempt, 6));
     }
 
     public String consumeResponse(HttpResponse response) throws ClientException, IOException {
@@ -138,10 +419,137 @@ public class APIClient {
         logger.fine("~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~");
 
         if (status != 200) {
-            throw new ClientException("Received status code " + status + " with content '" + content + "'");
+            throw new ClientException("Received status code " + status + " with content '" + content + "'",
+                    status);
         }
 
         return content;
     }
 
-}
\ No newline at end of file
+    /**
+     * Deserializes the response without buffering it. The body is only read into a string
+     * if the request failed (to be included in the exception) or if fine logging is enabled.
+     */
+    private <T> T consumeResponse(CloseableHttpResponse response, ObjectReader reader)
+            throws ClientException, IOException {
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200 || logger.isLoggable(Level.FINE)) {
+                return reader.readValue(consumeResponse(response));
+            }
+
+            InputStream is = response.getEntity().getContent();
+            try {
+                return reader.readValue(is);
+            } finally {
+                is.close();
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Entity that records the number of bytes read from it in the metrics of an end point. Gzip
+     * encoded content is decompressed as it's read, and the difference between the decompressed
+     * and compressed sizes is recorded as saved once the content is closed.
+     */
+    private static class CountingEntity extends HttpEntityWrapper {
+
+        private final EndpointMetrics endpoint;
+        private final boolean gzip;
+
+        CountingEntity(HttpEntity entity, EndpointMetrics endpoint) {
+            super(entity);
+            this.endpoint = endpoint;
+            Header encoding = entity.getContentEncoding();
+            this.gzip = encoding != null && "gzip".equalsIgnoreCase(encoding.getValue().trim()) &&
+                    entity.getContentLength() != 0;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final CountingInputStream received = new CountingInputStream(wrappedEntity.getContent()) {
+                @Override
+                protected void count(int n) {
+                    super.count(n);
+                    endpoint.recordReceived(n);
+                }
+            };
+            if (!gzip) {
+                return received;
+            }
+            return new CountingInputStream(new GZIPInputStream(received)) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        endpoint.recordSaved(getCount() - received.getCount());
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return gzip ? null : super.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() {
+            return gzip ? -1 : super.getContentLength();
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws IOException {
+            InputStream is = getContent();
+            try {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, n);
+                }
+            } finally {
+                is.close();
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        protected void count(int n) {
+            count += n;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
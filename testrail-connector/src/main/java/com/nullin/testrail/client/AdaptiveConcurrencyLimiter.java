@@ -0,0 +1,94 @@
+package com.nullin.testrail.client;
+
+/**
+ * Limits the number of requests in flight to TestRail and adapts that limit to how the server
+ * responds (additive increase/multiplicative decrease).
+ *
+ * Every successful response raises the limit by {@code 1/limit}, i.e. roughly by one for every
+ * full window of successful requests. A throttled response (429/503) halves it, but at most
+ * once per {@link #DECREASE_INTERVAL_MILLIS}, so that a burst of throttled responses to
+ * requests that were already in flight counts as a single signal. The server can also ask
+ * all requests to be held back for a while (e.g. via {@code Retry-After}) using
+ * {@link #pauseUntil(long)}.
+ *
+ * @author nullin
+ */
+class AdaptiveConcurrencyLimiter {
+
+    private static final long DECREASE_INTERVAL_MILLIS = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseMillis;
+    private long pausedUntilMillis;
+
+    AdaptiveConcurrencyLimiter(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Blocks until a request can be sent
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (true) {
+            long pause = pausedUntilMillis - System.currentTimeMillis();
+            if (pause > 0) {
+                wait(pause);
+            } else if (inFlight >= (int) limit) {
+                wait();
+            } else {
+                break;
+            }
+        }
+        inFlight++;
+    }
+
+    /**
+     * Releases the permit obtained via {@link #acquire()} once the response has been received
+     *
+     * @param throttled if the server asked us to slow down
+     */
+    synchronized void release(boolean throttled) {
+        inFlight--;
+        if (throttled) {
+            long now = System.currentTimeMillis();
+            if (now - lastDecreaseMillis >= DECREASE_INTERVAL_MILLIS) {
+                limit = Math.max(minLimit, limit / 2);
+                lastDecreaseMillis = now;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Releases the permit obtained via {@link #acquire()} without adjusting the limit, e.g. when
+     * the request failed without a response
+     */
+    synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Holds back all requests till the specified time
+     *
+     * @param timeMillis time in millis since epoch
+     */
+    synchronized void pauseUntil(long timeMillis) {
+        pausedUntilMillis = Math.max(pausedUntilMillis, timeMillis);
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,102 @@
+package com.nullin.testrail.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Metrics of the requests made by an {@link APIClient}, per end point.
+ *
+ * The set of end points is fixed, so looking up the metrics of a request doesn't allocate
+ * or lock. Requests to end points not in the set are recorded under {@link #OTHER}.
+ *
+ * @author nullin
+ */
+public class ApiMetrics {
+
+    static final String OTHER = "other";
+
+    private static final String[] ENDPOINTS = {
+            "add_case", "add_milestone", "add_plan", "add_plan_entry", "add_result_for_case",
+            "add_results_for_cases", "add_section", "add_suite", "close_plan", "delete_plan",
+            "get_case", "get_cases", "get_milestone", "get_milestones", "get_plan", "get_plans",
+            "get_results", "get_results_for_case", "get_results_for_run", "get_run", "get_suite",
+            "get_suites", "get_test", "get_tests", "update_case"
+    };
+
+    private final EndpointMetrics[] endpoints;
+    private final EndpointMetrics other = new EndpointMetrics(OTHER);
+
+    ApiMetrics() {
+        endpoints = new EndpointMetrics[ENDPOINTS.length];
+        for (int i = 0; i < ENDPOINTS.length; i++) {
+            endpoints[i] = new EndpointMetrics(ENDPOINTS[i]);
+        }
+    }
+
+    /**
+     * @param uriSuffix end point and parameters, e.g. {@code get_cases/1&suite_id=2}
+     * @return metrics of the end point
+     */
+    EndpointMetrics forUri(String uriSuffix) {
+        for (int i = 0; i < ENDPOINTS.length; i++) {
+            String name = ENDPOINTS[i];
+            if (uriSuffix.startsWith(name)) {
+                int end = name.length();
+                if (uriSuffix.length() == end || uriSuffix.charAt(end) == '/' || uriSuffix.charAt(end) == '&') {
+                    return endpoints[i];
+                }
+            }
+        }
+        return other;
+    }
+
+    /**
+     * @return metrics of the end points that were requested at least once
+     */
+    public List<EndpointMetrics> getEndpoints() {
+        List<EndpointMetrics> used = new ArrayList<EndpointMetrics>();
+        for (EndpointMetrics endpoint : endpoints) {
+            if (endpoint.getRequests() > 0) {
+                used.add(endpoint);
+            }
+        }
+        if (other.getRequests() > 0) {
+            used.add(other);
+        }
+        return Collections.unmodifiableList(used);
+    }
+
+    /**
+     * @return bytes sent in request bodies, across all end points
+     */
+    public long getBytesSent() {
+        long sum = other.getBytesSent();
+        for (EndpointMetrics endpoint : endpoints) {
+            sum += endpoint.getBytesSent();
+        }
+        return sum;
+    }
+
+    /**
+     * @return bytes received in response bodies, across all end points
+     */
+    public long getBytesReceived() {
+        long sum = other.getBytesReceived();
+        for (EndpointMetrics endpoint : endpoints) {
+            sum += endpoint.getBytesReceived();
+        }
+        return sum;
+    }
+
+    /**
+     * @return bytes saved by gzip compression of request and response bodies, across all end points
+     */
+    public long getBytesSaved() {
+        long sum = other.getBytesSaved();
+        for (EndpointMetrics endpoint : endpoints) {
+            sum += endpoint.getBytesSaved();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,520 @@
+package com.nullin.testrail.client;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nullin.testrail.client.request.CaseRequest;
+import com.nullin.testrail.client.request.NameRequest;
+import com.nullin.testrail.client.request.PlanEntryRequest;
+import com.nullin.testrail.client.request.PlanRequest;
+import com.nullin.testrail.client.request.ResultRequest;
+import com.nullin.testrail.client.request.ResultsRequest;
+import com.nullin.testrail.client.request.SectionRequest;
+import com.nullin.testrail.dto.Case;
+import com.nullin.testrail.dto.Milestone;
+import com.nullin.testrail.dto.Plan;
+import com.nullin.testrail.dto.PlanEntry;
+import com.nullin.testrail.dto.Result;
+import com.nullin.testrail.dto.Run;
+import com.nullin.testrail.dto.Section;
+import com.nullin.testrail.dto.Suite;
+import com.nullin.testrail.dto.Test;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Non-blocking counterpart of {@link TestRailClient}. Requests are executed by a small number of
+ * I/O threads (see {@link ConnectionConfig#getIoThreads()}) and every method returns immediately
+ * with a future for the response, so that many requests can be in flight without a thread each.
+ *
+ * At most {@link ConnectionConfig#getMaxInFlightRequests()} requests are in flight at a time.
+ * Further requests are queued and sent, in order, as earlier ones complete. Requests throttled by
+ * the server (429 or 503) are retried like {@link APIClient} does, without holding a slot while
+ * waiting. Requests are recorded in the same {@link ApiMetrics} as the blocking client.
+ *
+ * Futures fail with a {@link ClientException} when the server responds with a status code other
+ * than 200 and with an {@link IOException} when the request can't be executed. They are completed
+ * on the I/O threads, so listeners that do any real work should be run on another executor.
+ *
+ * @author nullin
+ */
+public class AsyncTestRailClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Logger logger = Logger.getLogger(AsyncTestRailClient.class.getName());
+    private final CloseableHttpAsyncClient httpClient;
+    private final JsonCodec codec = new JsonCodec();
+    private final ApiMetrics metrics = new ApiMetrics();
+    //schedules the retries of throttled requests
+    private final ScheduledExecutorService retryScheduler;
+    private final String url;
+    private final int maxInFlight;
+    private final int maxRetries;
+    //requests waiting for a slot, and the number of requests in flight. Guarded by the queue.
+    private final Queue<PendingRequest<?>> queue = new ArrayDeque<PendingRequest<?>>();
+    private int inFlight;
+
+    public AsyncTestRailClient(String url, String username, String password) {
+        this(url, username, password, new ConnectionConfig());
+    }
+
+    public AsyncTestRailClient(String url, String username, String password, ConnectionConfig config) {
+        try {
+            List<Header> headers = new ArrayList<Header>();
+            headers.add(new BasicHeader("Content-Type", "application/json"));
+            headers.add(new BasicHeader("Authorization", "Basic " +
+                    BaseEncoding.base64().encode((username + ":" + password).getBytes(UTF_8))));
+
+            IOReactorConfig reactorConfig = IOReactorConfig.custom()
+                    .setIoThreadCount(config.getIoThreads())
+                    .setConnectTimeout(config.getConnectTimeoutMillis())
+                    .setSoTimeout(config.getSocketTimeoutMillis())
+                    .build();
+            DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(reactorConfig,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-async-io-%d").build());
+            //every request in flight needs its own connection
+            PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(reactor);
+            connectionManager.setMaxTotal(config.getMaxInFlightRequests());
+            connectionManager.setDefaultMaxPerRoute(config.getMaxInFlightRequests());
+
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(config.getConnectTimeoutMillis())
+                    .setSocketTimeout(config.getSocketTimeoutMillis())
+                    .setConnectionRequestTimeout(config.getConnectionRequestTimeoutMillis())
+                    .build();
+
+            httpClient = HttpAsyncClients.custom()
+                    .setDefaultHeaders(headers)
+                    .setConnectionManager(connectionManager)
+                    .setDefaultRequestConfig(requestConfig)
+                    .build();
+            httpClient.start();
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-async-retry-%d").build());
+            maxInFlight = config.getMaxInFlightRequests();
+            maxRetries = config.getMaxRetries();
+            this.url = url + "/index.php?/api/v2/";
+            logger.fine("Created async API client for " + url);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return request counts, latencies and bytes transferred, per end point
+     */
+    public ApiMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return number of requests waiting for a slot to be sent
+     */
+    public int getQueuedRequests() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * Closes all connections and stops the I/O threads. Requests still in flight or queued
+     * don't complete. This client can't be used after it has been closed.
+     */
+    public void close() throws IOException {
+        retryScheduler.shutdownNow();
+        httpClient.close();
+    }
+
+    /*
+    Plans
+     */
+
+    public ListenableFuture<Plan> getPlan(int planId) {
+        return get("get_plan/" + planId, codec.reader(Plan.class));
+    }
+
+    public ListenableFuture<List<Plan>> getPlans(int projectId, Map<String, String> filters) {
+        return get(withFilters("get_plans/" + projectId, filters), codec.listReader(Plan.class));
+    }
+
+    public ListenableFuture<Plan> addPlan(int projectId, String name, Integer milestoneId, List<PlanEntry> entries) {
+        PlanRequest body = new PlanRequest();
+        body.name = name;
+        body.milestoneId = milestoneId;
+        body.entries = entries;
+        return post("add_plan/" + projectId, body, codec.reader(Plan.class));
+    }
+
+    public ListenableFuture<PlanEntry> addPlanEntry(int planId, int suiteId) {
+        PlanEntryRequest body = new PlanEntryRequest();
+        body.suiteId = suiteId;
+        return post("add_plan_entry/" + planId, body, codec.reader(PlanEntry.class));
+    }
+
+    public ListenableFuture<Plan> closePlan(int planId) {
+        return post("close_plan/" + planId, null, codec.reader(Plan.class));
+    }
+
+    public ListenableFuture<Void> deletePlan(int planId) {
+        return post("delete_plan/" + planId, null, null);
+    }
+
+    /*
+    Results
+     */
+
+    public ListenableFuture<List<Result>> getResults(int testId) {
+        return get("get_results/" + testId, codec.listReader(Result.class));
+    }
+
+    public ListenableFuture<List<Result>> getResultsForRun(int runId, Map<String, String> filters) {
+        return get(withFilters("get_results_for_run/" + runId, filters), codec.listReader(Result.class));
+    }
+
+    public ListenableFuture<List<Result>> getResultsForCase(int runId, int caseId) {
+        return get("get_results_for_case/" + runId + "/" + caseId + "&limit=10",
+                codec.listReader(Result.class));
+    }
+
+    public ListenableFuture<Result> addResultForCase(int runId, int caseId, int statusId, String comment) {
+        ResultRequest body = new ResultRequest();
+        body.statusId = statusId;
+        body.comment = comment;
+        return addResultForCase(runId, caseId, body);
+    }
+
+    public ListenableFuture<Result> addResultForCase(int runId, int caseId, ResultRequest result) {
+        return post("add_result_for_case/" + runId + "/" + caseId, result, codec.reader(Result.class));
+    }
+
+    /**
+     * @see TestRailClient#addResultsForCases(int, List)
+     */
+    public ListenableFuture<List<Result>> addResultsForCases(int runId, List<ResultRequest> results) {
+        return post("add_results_for_cases/" + runId, new ResultsRequest(results),
+                codec.listReader(Result.class));
+    }
+
+    /*
+    Tests
+     */
+
+    public ListenableFuture<Test> getTest(int testId) {
+        return get("get_test/" + testId, codec.reader(Test.class));
+    }
+
+    public ListenableFuture<List<Test>> getTests(int runId) {
+        return get("get_tests/" + runId, codec.listReader(Test.class));
+    }
+
+    /*
+    Cases
+     */
+
+    public ListenableFuture<Case> addCase(int sectionId, String title, Map<String, String> fields) {
+        CaseRequest body = new CaseRequest();
+        body.title = title;
+        if (fields != null) {
+            body.getFields().putAll(fields);
+        }
+        return post("add_case/" + sectionId, body, codec.reader(Case.class));
+    }
+
+    public ListenableFuture<Case> getCase(int caseId) {
+        return get("get_case/" + caseId, codec.reader(Case.class));
+    }
+
+    public ListenableFuture<List<Case>> getCases(int projectId, int suiteId, int sectionId,
+                                                 Map<String, String> filters) {
+        return get(getCasesUrl(projectId, suiteId, sectionId, filters), codec.listReader(Case.class));
+    }
+
+    /**
+     * @see TestRailClient#getCasesAsMap(int, int, int, Map)
+     */
+    public ListenableFuture<List<Map<String, Object>>> getCasesAsMap(int projectId, int suiteId, int sectionId,
+                                                                     Map<String, String> filters) {
+        return get(getCasesUrl(projectId, suiteId, sectionId, filters), codec.mapListReader());
+    }
+
+    public ListenableFuture<Case> updateCase(int caseId, Map<String, Object> fields) {
+        return post("update_case/" + caseId, fields, codec.reader(Case.class));
+    }
+
+    private String getCasesUrl(int projectId, int suiteId, int sectionId, Map<String, String> filters) {
+        String url = "get_cases/" + projectId;
+        if (suiteId > 0) {
+            url += "&suite_id=" + suiteId;
+        }
+        if (sectionId > 0) {
+            url += "&section_id=" + sectionId;
+        }
+        return withFilters(url, filters);
+    }
+
+    /*
+    Sections
+     */
+
+    public ListenableFuture<Section> addSection(int projectId, String name, int parentId, int suiteId) {
+        SectionRequest body = new SectionRequest();
+        if (suiteId > 0) {
+            body.suiteId = suiteId;
+        }
+        if (parentId > 0) {
+            body.parentId = parentId;
+        }
+        body.name = name;
+        return post("add_section/" + projectId, body, codec.reader(Section.class));
+    }
+
+    /*
+    Suites
+     */
+
+    public ListenableFuture<Suite> addSuite(int projectId, String name) {
+        return post("add_suite/" + projectId, new NameRequest(name, null), codec.reader(Suite.class));
+    }
+
+    public ListenableFuture<Suite> getSuite(int suiteId) {
+        return get("get_suite/" + suiteId, codec.reader(Suite.class));
+    }
+
+    public ListenableFuture<List<Suite>> getSuites(int projectId) {
+        return get("get_suites/" + projectId, codec.listReader(Suite.class));
+    }
+
+    /*
+    Milestones
+     */
+
+    public ListenableFuture<Milestone> getMilestone(int milestoneId) {
+        return get("get_milestone/" + milestoneId, codec.reader(Milestone.class));
+    }
+
+    public ListenableFuture<List<Milestone>> getMilestones(int projectId) {
+        return get("get_milestones/" + projectId, codec.listReader(Milestone.class));
+    }
+
+    public ListenableFuture<Milestone> addMilestone(int projectId, String name, String description) {
+        return post("add_milestone/" + projectId, new NameRequest(name, description),
+                codec.reader(Milestone.class));
+    }
+
+    /*
+    Runs
+     */
+
+    public ListenableFuture<Run> getRun(int runId) {
+        return get("get_run/" + runId, codec.reader(Run.class));
+    }
+
+    /*
+    Request execution
+     */
+
+    private static String withFilters(String url, Map<String, String> filters) {
+        if (filters != null) {
+            for (Map.Entry<String, String> entry : filters.entrySet()) {
+                url += "&" + entry.getKey() + "=" + entry.getValue();
+            }
+        }
+        return url;
+    }
+
+    private <T> ListenableFuture<T> get(String uriSuffix, ObjectReader reader) {
+        return submit(new PendingRequest<T>(uriSuffix, null, reader, metrics.forUri(uriSuffix)));
+    }
+
+    /**
+     * @param body body of the request, null for an empty body
+     * @param reader reader for the response, null if the response is to be ignored
+     */
+    private <T> ListenableFuture<T> post(String uriSuffix, Object body, ObjectReader reader) {
+        String jsonData;
+        try {
+            jsonData = body == null ? "" : codec.write(body);
+        } catch (JsonProcessingException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+        return submit(new PendingRequest<T>(uriSuffix, jsonData, reader, metrics.forUri(uriSuffix)));
+    }
+
+    /**
+     * Sends the request if there is a free slot, queues it otherwise
+     */
+    private <T> ListenableFuture<T> submit(PendingRequest<T> request) {
+        synchronized (queue) {
+            if (inFlight >= maxInFlight) {
+                queue.add(request);
+                return request.future;
+            }
+            inFlight++;
+        }
+        if (!send(request)) {
+            release();
+        }
+        return request.future;
+    }
+
+    /**
+     * Frees the slot of a completed request by handing it to the next queued request, if any.
+     * Queued requests that complete without being sent (e.g. cancelled) hand it on in turn, in a
+     * loop rather than recursively, so a long queue of them can't overflow the stack.
+     */
+    private void release() {
+        while (true) {
+            PendingRequest<?> next;
+            synchronized (queue) {
+                next = queue.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            if (send(next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the request, which holds a slot until its callback releases it
+     *
+     * @return false if the request wasn't sent, e.g. because it was cancelled while queued, in
+     *          which case the caller still holds the slot
+     */
+    private <T> boolean send(final PendingRequest<T> request) {
+        if (request.future.isCancelled()) {
+            return false;
+        }
+        logger.fine("Invoking " + request.uriSuffix);
+        final long start = System.nanoTime();
+        try {
+            httpClient.execute(request.create(url), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    int status = response.getStatusLine().getStatusCode();
+                    request.endpoint.recordRequest(System.nanoTime() - start, status, request.sentBytes);
+                    release();
+                    if ((status == 429 || status == 503) && request.attempt < maxRetries) {
+                        retry(request, response);
+                        return;
+                    }
+                    try {
+                        request.future.set(request.parse(response));
+                    } catch (Exception e) {
+                        request.future.setException(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    request.endpoint.recordRequest(System.nanoTime() - start, 0, request.sentBytes);
+                    release();
+                    request.future.setException(ex);
+                }
+
+                @Override
+                public void cancelled() {
+                    release();
+                    request.future.cancel(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            //e.g. an invalid URI or a closed client, the callback won't be invoked
+            request.future.setException(e);
+            return false;
+        }
+        return true;
+    }
+
+    private <T> void retry(final PendingRequest<T> request, HttpResponse response) {
+        long delay = APIClient.getRetryDelayMillis(response, request.attempt++);
+        logger.warning("Received status code " + response.getStatusLine().getStatusCode() + " for " +
+                request.uriSuffix + ". Retrying in " + delay + "ms");
+        EntityUtils.consumeQuietly(response.getEntity());
+        retryScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                submit(request);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A request and the future for its response
+     */
+    private static class PendingRequest<T> {
+        final String uriSuffix;
+        //null for GET requests
+        final String jsonData;
+        final ObjectReader reader;
+        final EndpointMetrics endpoint;
+        final long sentBytes;
+        final SettableFuture<T> future = SettableFuture.create();
+        int attempt;
+
+        PendingRequest(String uriSuffix, String jsonData, ObjectReader reader, EndpointMetrics endpoint) {
+            this.uriSuffix = uriSuffix;
+            this.jsonData = jsonData;
+            this.reader = reader;
+            this.endpoint = endpoint;
+            this.sentBytes = jsonData == null ? 0 : jsonData.getBytes(UTF_8).length;
+        }
+
+        HttpUriRequest create(String url) {
+            if (jsonData == null) {
+                return new HttpGet(url + uriSuffix);
+            }
+            HttpPost httpPost = new HttpPost(url + uriSuffix);
+            httpPost.setEntity(new StringEntity(jsonData, ContentType.APPLICATION_JSON));
+            return httpPost;
+        }
+
+        /**
+         * Deserializes the response, which has already been read into memory by the I/O thread
+         */
+        T parse(HttpResponse response) throws IOException, ClientException {
+            byte[] content = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+            endpoint.recordReceived(content.length);
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                throw new ClientException("Received status code " + status + " with content '" +
+                        new String(content, UTF_8) + "'", status);
+            }
+            return reader == null ? null : reader.<T>readValue(content);
+        }
+    }
+}
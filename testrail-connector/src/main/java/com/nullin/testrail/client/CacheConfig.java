@@ -0,0 +1,61 @@
+package com.nullin.testrail.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings for the response caches of {@link CachingTestRailClient}. Time to live can be set per
+ * end point, using the end point names, e.g. {@code get_case}. The defaults are used for anything
+ * that isn't explicitly set.
+ *
+ * @author nullin
+ */
+public class CacheConfig {
+
+    //max entries cached per end point, least recently used ones are evicted first
+    private long maximumSize = 10000;
+    //time to live of a cached response (ms), for end points without a specific one
+    private long defaultTtlMillis = 60000;
+    //time to live of a cached response (ms), per end point
+    private final Map<String, Long> ttlMillis = new HashMap<String, Long>();
+
+    public CacheConfig() {
+        //plans and runs change as entries are added and plans closed by other clients
+        ttlMillis.put("get_plan", 10000L);
+        ttlMillis.put("get_run", 10000L);
+        //suites and milestones rarely change
+        ttlMillis.put("get_suite", 600000L);
+        ttlMillis.put("get_suites", 600000L);
+        ttlMillis.put("get_milestone", 600000L);
+        ttlMillis.put("get_milestones", 600000L);
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public long getDefaultTtlMillis() {
+        return defaultTtlMillis;
+    }
+
+    public void setDefaultTtlMillis(long defaultTtlMillis) {
+        this.defaultTtlMillis = defaultTtlMillis;
+    }
+
+    public long getTtlMillis(String endpoint) {
+        Long ttl = ttlMillis.get(endpoint);
+        return ttl != null ? ttl : defaultTtlMillis;
+    }
+
+    /**
+     * @param endpoint name of the end point, e.g. {@code get_case}
+     * @param ttlMillis time to live of its cached responses, 0 to only coalesce concurrent requests
+     */
+    public void setTtlMillis(String endpoint, long ttlMillis) {
+        this.ttlMillis.put(endpoint, ttlMillis);
+    }
+}
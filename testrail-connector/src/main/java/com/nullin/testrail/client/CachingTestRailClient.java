@@ -0,0 +1,320 @@
+package com.nullin.testrail.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.nullin.testrail.dto.Case;
+import com.nullin.testrail.dto.Milestone;
+import com.nullin.testrail.dto.Plan;
+import com.nullin.testrail.dto.PlanEntry;
+import com.nullin.testrail.dto.Run;
+import com.nullin.testrail.dto.Suite;
+
+/**
+ * {@link TestRailClient} that caches the responses of the GET end points for plans, runs, suites,
+ * milestones and cases, so that tools and threads fetching the same objects share a single request.
+ *
+ * Each end point has its own cache, bounded in size and with its own time to live (see
+ * {@link CacheConfig}). Concurrent requests for the same object are coalesced into a single call
+ * to TestRail, even if the response isn't cached afterwards. Responses are invalidated when they
+ * are modified through this client (e.g. {@link #updateCase} or {@link #closePlan}), but changes made
+ * by other clients are only seen once the cached response expires. Tests and results are not cached.
+ *
+ * Cached objects are shared between callers and must not be modified. Lists are unmodifiable.
+ *
+ * @author nullin
+ */
+public class CachingTestRailClient extends TestRailClient {
+
+    private final LoadingCache<Integer, Plan> plans;
+    private final LoadingCache<Integer, Run> runs;
+    private final LoadingCache<Integer, Suite> suites;
+    private final LoadingCache<Integer, List<Suite>> projectSuites;
+    private final LoadingCache<Integer, Milestone> milestones;
+    private final LoadingCache<Integer, List<Milestone>> projectMilestones;
+    private final LoadingCache<Integer, Case> cases;
+    private final LoadingCache<CasesKey, List<Case>> caseLists;
+    //all the caches above, per end point
+    private final Map<String, LoadingCache<?, ?>> caches = new LinkedHashMap<String, LoadingCache<?, ?>>();
+
+    public CachingTestRailClient(String url, String username, String password) {
+        this(url, username, password, new ConnectionConfig(), new CacheConfig());
+    }
+
+    public CachingTestRailClient(String url, String username, String password, ConnectionConfig connectionConfig,
+                                 CacheConfig cacheConfig) {
+        super(url, username, password, connectionConfig);
+        plans = cache("get_plan", cacheConfig, new CacheLoader<Integer, Plan>() {
+            @Override
+            public Plan load(Integer planId) throws Exception {
+                return CachingTestRailClient.super.getPlan(planId);
+            }
+        });
+        runs = cache("get_run", cacheConfig, new CacheLoader<Integer, Run>() {
+            @Override
+            public Run load(Integer runId) throws Exception {
+                return CachingTestRailClient.super.getRun(runId);
+            }
+        });
+        suites = cache("get_suite", cacheConfig, new CacheLoader<Integer, Suite>() {
+            @Override
+            public Suite load(Integer suiteId) throws Exception {
+                return CachingTestRailClient.super.getSuite(suiteId);
+            }
+        });
+        projectSuites = cache("get_suites", cacheConfig, new CacheLoader<Integer, List<Suite>>() {
+            @Override
+            public List<Suite> load(Integer projectId) throws Exception {
+                return Collections.unmodifiableList(CachingTestRailClient.super.getSuites(projectId));
+            }
+        });
+        milestones = cache("get_milestone", cacheConfig, new CacheLoader<Integer, Milestone>() {
+            @Override
+            public Milestone load(Integer milestoneId) throws Exception {
+                return CachingTestRailClient.super.getMilestone(milestoneId);
+            }
+        });
+        projectMilestones = cache("get_milestones", cacheConfig, new CacheLoader<Integer, List<Milestone>>() {
+            @Override
+            public List<Milestone> load(Integer projectId) throws Exception {
+                return Collections.unmodifiableList(CachingTestRailClient.super.getMilestones(projectId));
+            }
+        });
+        cases = cache("get_case", cacheConfig, new CacheLoader<Integer, Case>() {
+            @Override
+            public Case load(Integer caseId) throws Exception {
+                return CachingTestRailClient.super.getCase(caseId);
+            }
+        });
+        caseLists = cache("get_cases", cacheConfig, new CacheLoader<CasesKey, List<Case>>() {
+            @Override
+            public List<Case> load(CasesKey key) throws Exception {
+                return Collections.unmodifiableList(CachingTestRailClient.super.getCases(key.projectId,
+                        key.suiteId, key.sectionId, key.filters));
+            }
+        });
+    }
+
+    private <K, V> LoadingCache<K, V> cache(String endpoint, CacheConfig config, CacheLoader<K, V> loader) {
+        LoadingCache<K, V> cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getMaximumSize())
+                .expireAfterWrite(config.getTtlMillis(endpoint), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build(loader);
+        caches.put(endpoint, cache);
+        return cache;
+    }
+
+    /**
+     * @return hit, miss and load statistics of the cache of each end point
+     */
+    public Map<String, CacheStats> getCacheStats() {
+        Map<String, CacheStats> stats = new LinkedHashMap<String, CacheStats>();
+        for (Map.Entry<String, LoadingCache<?, ?>> cache : caches.entrySet()) {
+            stats.put(cache.getKey(), cache.getValue().stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Discards all cached responses
+     */
+    public void invalidateAll() {
+        for (LoadingCache<?, ?> cache : caches.values()) {
+            cache.invalidateAll();
+        }
+    }
+
+    /*
+    Plans
+     */
+
+    @Override
+    public Plan getPlan(int planId) throws IOException, ClientException {
+        return get(plans, planId);
+    }
+
+    @Override
+    public PlanEntry addPlanEntry(int planId, int suiteId) throws IOException, ClientException {
+        try {
+            return super.addPlanEntry(planId, suiteId);
+        } finally {
+            plans.invalidate(planId);
+        }
+    }
+
+    @Override
+    public Plan closePlan(int planId) throws IOException, ClientException {
+        try {
+            return super.closePlan(planId);
+        } finally {
+            plans.invalidate(planId);
+            runs.invalidateAll(); //the runs of the plan are closed too
+        }
+    }
+
+    @Override
+    public void deletePlan(int planId) throws IOException, ClientException {
+        try {
+            super.deletePlan(planId);
+        } finally {
+            plans.invalidate(planId);
+            runs.invalidateAll();
+        }
+    }
+
+    /*
+    Runs
+     */
+
+    @Override
+    public Run getRun(int runId) throws IOException, ClientException {
+        return get(runs, runId);
+    }
+
+    /*
+    Cases
+     */
+
+    @Override
+    public Case getCase(int caseId) throws IOException, ClientException {
+        return get(cases, caseId);
+    }
+
+    @Override
+    public List<Case> getCases(int projectId, int suiteId, int sectionId, Map<String, String> filters)
+            throws IOException, ClientException {
+        return get(caseLists, new CasesKey(projectId, suiteId, sectionId, filters));
+    }
+
+    @Override
+    public Case addCase(int sectionId, String title, Map<String, String> fields) throws IOException, ClientException {
+        try {
+            return super.addCase(sectionId, title, fields);
+        } finally {
+            caseLists.invalidateAll();
+        }
+    }
+
+    @Override
+    public Case updateCase(int caseId, Map<String, Object> fields) throws IOException, ClientException {
+        try {
+            return super.updateCase(caseId, fields);
+        } finally {
+            cases.invalidate(caseId);
+            caseLists.invalidateAll();
+        }
+    }
+
+    /*
+    Suites
+     */
+
+    @Override
+    public Suite getSuite(int suiteId) throws IOException, ClientException {
+        return get(suites, suiteId);
+    }
+
+    @Override
+    public List<Suite> getSuites(int projectId) throws IOException, ClientException {
+        return get(projectSuites, projectId);
+    }
+
+    @Override
+    public Suite addSuite(int projectId, String name) throws IOException, ClientException {
+        try {
+            return super.addSuite(projectId, name);
+        } finally {
+            projectSuites.invalidate(projectId);
+        }
+    }
+
+    /*
+    Milestones
+     */
+
+    @Override
+    public Milestone getMilestone(int milestoneId) throws IOException, ClientException {
+        return get(milestones, milestoneId);
+    }
+
+    @Override
+    public List<Milestone> getMilestones(int projectId) throws IOException, ClientException {
+        return get(projectMilestones, projectId);
+    }
+
+    @Override
+    public Milestone addMilestone(int projectId, String name, String description)
+            throws IOException, ClientException {
+        try {
+            return super.addMilestone(projectId, name, description);
+        } finally {
+            projectMilestones.invalidate(projectId);
+        }
+    }
+
+    /**
+     * Gets the value from the cache, loading it if needed, and re-throws any exception thrown
+     * while loading it as is
+     */
+    private static <K, V> V get(LoadingCache<K, V> cache, K key) throws IOException, ClientException {
+        try {
+            return cache.get(key);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            Throwables.propagateIfInstanceOf(e.getCause(), ClientException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /**
+     * Key of the cases cache: project, suite and section ids and a copy of the filters
+     */
+    private static final class CasesKey {
+        final int projectId;
+        final int suiteId;
+        final int sectionId;
+        final Map<String, String> filters;
+
+        CasesKey(int projectId, int suiteId, int sectionId, Map<String, String> filters) {
+            this.projectId = projectId;
+            this.suiteId = suiteId;
+            this.sectionId = sectionId;
+            this.filters = filters == null ? Collections.<String, String>emptyMap() :
+                    new HashMap<String, String>(filters);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CasesKey)) {
+                return false;
+            }
+            CasesKey other = (CasesKey) o;
+            return projectId == other.projectId && suiteId == other.suiteId && sectionId == other.sectionId &&
+                    filters.equals(other.filters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(projectId, suiteId, sectionId, filters);
+        }
+    }
+}
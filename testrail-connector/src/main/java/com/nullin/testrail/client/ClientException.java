@@ -7,13 +7,31 @@ package com.nullin.testrail.client;
  */
 public class ClientException extends Exception
 {
+	//status code of the response, 0 if the request didn't get one
+	private final int statusCode;
+
 	public ClientException(String message)
+	{
+		this(message, 0);
+	}
+
+	public ClientException(String message, int statusCode)
 	{
 		super(message);
+		this.statusCode = statusCode;
 	}
 
     public ClientException(String message, Exception ex)
    	{
    		super(message, ex);
+   		this.statusCode = 0;
    	}
+
+	/**
+	 * @return status code of the response, 0 if the request didn't get one
+	 */
+	public int getStatusCode()
+	{
+		return statusCode;
+	}
 }
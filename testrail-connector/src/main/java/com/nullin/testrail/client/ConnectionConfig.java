@@ -0,0 +1,158 @@
+package com.nullin.testrail.client;
+
+/**
+ * Settings for the HTTP connections used by {@link APIClient} and {@link AsyncTestRailClient}. All
+ * times are in milliseconds and the defaults are used for anything that isn't explicitly set.
+ *
+ * @author nullin
+ */
+public class ConnectionConfig {
+
+    //max connections across all routes
+    private int maxConnections = 20;
+    //max connections to a single route (i.e. the TestRail host)
+    private int maxConnectionsPerRoute = 10;
+    //how long an idle connection is kept alive when the server doesn't say otherwise
+    private long keepAliveMillis = 30000;
+    //connections idle for longer than this are closed by a background thread
+    private long idleTimeoutMillis = 30000;
+    //time to establish a connection
+    private int connectTimeoutMillis = 10000;
+    //max time of inactivity between two data packets
+    private int socketTimeoutMillis = 60000;
+    //time to wait for a connection from the pool
+    private int connectionRequestTimeoutMillis = 30000;
+    //max requests sent per second, 0 for no limit
+    private double maxRequestsPerSecond = 0;
+    //upper bound for the number of requests in flight, adapted based on throttling by the server
+    private int maxConcurrentRequests = 10;
+    //number of times a throttled (429/503) request is retried
+    private int maxRetries = 5;
+    //max requests in flight for the async client, further requests are queued. Also the size of its connection pool.
+    private int maxInFlightRequests = 200;
+    //number of I/O dispatcher threads of the async client
+    private int ioThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    //ask for gzip compressed responses
+    private boolean compressResponses = true;
+    //request bodies of at least this many bytes are gzip compressed, 0 to never compress them
+    private int compressRequestsMinBytes = 0;
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public long getKeepAliveMillis() {
+        return keepAliveMillis;
+    }
+
+    public void setKeepAliveMillis(long keepAliveMillis) {
+        this.keepAliveMillis = keepAliveMillis;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public int getConnectionRequestTimeoutMillis() {
+        return connectionRequestTimeoutMillis;
+    }
+
+    public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+        this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+    }
+
+    public double getMaxRequestsPerSecond() {
+        return maxRequestsPerSecond;
+    }
+
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    public void setMaxInFlightRequests(int maxInFlightRequests) {
+        this.maxInFlightRequests = maxInFlightRequests;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public boolean isCompressResponses() {
+        return compressResponses;
+    }
+
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    public int getCompressRequestsMinBytes() {
+        return compressRequestsMinBytes;
+    }
+
+    /**
+     * Request bodies are only compressed as long as the server accepts them. The first time a
+     * compressed request is rejected as unsupported (415) but the same request succeeds uncompressed,
+     * compression of requests is disabled for the rest of the client's life.
+     *
+     * @param compressRequestsMinBytes min size of a request body to gzip compress it, 0 to never compress
+     */
+    public void setCompressRequestsMinBytes(int compressRequestsMinBytes) {
+        this.compressRequestsMinBytes = compressRequestsMinBytes;
+    }
+}
@@ -0,0 +1,94 @@
+package com.nullin.testrail.client;
+
+import com.nullin.testrail.metrics.Histogram;
+import com.nullin.testrail.metrics.StripedCounter;
+
+/**
+ * Metrics of the requests made to a TestRail API end point. Every attempt is counted,
+ * including the ones that are retried because they were throttled.
+ *
+ * @author nullin
+ */
+public class EndpointMetrics {
+
+    private final String name;
+    private final StripedCounter requests = new StripedCounter();
+    //requests that failed with an I/O error or a status code other than 200
+    private final StripedCounter errors = new StripedCounter();
+    //requests that were throttled by the server (429 or 503)
+    private final StripedCounter throttled = new StripedCounter();
+    private final StripedCounter bytesSent = new StripedCounter();
+    private final StripedCounter bytesReceived = new StripedCounter();
+    //bytes not transferred thanks to gzip compression of request and response bodies
+    private final StripedCounter bytesSaved = new StripedCounter();
+    //time to receive the response status and headers, in microseconds
+    private final Histogram latency = new Histogram();
+
+    EndpointMetrics(String name) {
+        this.name = name;
+    }
+
+    void recordRequest(long latencyNanos, int status, long sent) {
+        requests.increment();
+        latency.record(latencyNanos / 1000);
+        if (sent > 0) {
+            bytesSent.add(sent);
+        }
+        if (status == 429 || status == 503) {
+            throttled.increment();
+        }
+        if (status != 200) {
+            errors.increment();
+        }
+    }
+
+    void recordReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    void recordSaved(long bytes) {
+        bytesSaved.add(bytes);
+    }
+
+    /**
+     * @return name of the end point, e.g. {@code get_cases}
+     */
+    public String getName() {
+        return name;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return difference between the uncompressed and compressed sizes of the gzip encoded
+     *          request and response bodies
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * @return latency of the requests, in microseconds
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+}
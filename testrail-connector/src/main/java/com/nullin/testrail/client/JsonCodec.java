@@ -0,0 +1,110 @@
+package com.nullin.testrail.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * (De)-serializes request and response bodies to/from json.
+ *
+ * Readers and writers are created once per type and reused, so that type resolution
+ * isn't repeated for every request. If the Jackson Afterburner module is on the classpath,
+ * it is registered to speed up (de)-serialization of the DTOs.
+ *
+ * @author nullin
+ */
+class JsonCodec {
+
+    private static final String AFTERBURNER_MODULE = "com.fasterxml.jackson.module.afterburner.AfterburnerModule";
+
+    private Logger logger = Logger.getLogger(JsonCodec.class.getName());
+    private final ObjectMapper objectMapper;
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private final ConcurrentMap<Class<?>, ObjectReader> listReaders = new ConcurrentHashMap<Class<?>, ObjectReader>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+    private final ObjectReader mapListReader;
+
+    JsonCodec() {
+        objectMapper = new ObjectMapper();
+        objectMapper.configure(SerializationFeature.WRITE_NULL_MAP_VALUES, false);
+        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        //TODO: should probably remove this
+        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        registerAfterburner();
+        mapListReader = objectMapper.reader(new TypeReference<List<Map<String, Object>>>(){});
+    }
+
+    private void registerAfterburner() {
+        try {
+            Class<?> moduleClass = Class.forName(AFTERBURNER_MODULE);
+            objectMapper.registerModule((Module) moduleClass.getDeclaredConstructor().newInstance());
+            logger.fine("Registered Jackson Afterburner module");
+        } catch (ClassNotFoundException e) {
+            //optional dependency, not available
+        } catch (InvocationTargetException e) {
+            logger.warning("Unable to register Jackson Afterburner module: " + e.getCause());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warning("Unable to register Jackson Afterburner module: " + e);
+        }
+    }
+
+    /**
+     * @return reader for a single object of the given type
+     */
+    ObjectReader reader(Class<?> type) {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = objectMapper.reader(type);
+            ObjectReader existing = readers.putIfAbsent(type, reader);
+            reader = existing != null ? existing : reader;
+        }
+        return reader;
+    }
+
+    /**
+     * @return reader for a list of objects of the given type
+     */
+    ObjectReader listReader(Class<?> type) {
+        ObjectReader reader = listReaders.get(type);
+        if (reader == null) {
+            reader = objectMapper.reader(objectMapper.getTypeFactory().constructCollectionType(List.class, type));
+            ObjectReader existing = listReaders.putIfAbsent(type, reader);
+            reader = existing != null ? existing : reader;
+        }
+        return reader;
+    }
+
+    /**
+     * @return reader for a list of generic maps, used for objects with custom fields
+     */
+    ObjectReader mapListReader() {
+        return mapListReader;
+    }
+
+    /**
+     * @return json representation of the body
+     */
+    String write(Object body) throws JsonProcessingException {
+        Class<?> type = body.getClass();
+        ObjectWriter writer = writers.get(type);
+        if (writer == null) {
+            writer = objectMapper.writerWithType(type);
+            ObjectWriter existing = writers.putIfAbsent(type, writer);
+            writer = existing != null ? existing : writer;
+        }
+        return writer.writeValueAsString(body);
+    }
+}
@@ -0,0 +1,153 @@
+package com.nullin.testrail.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Iterates over the items returned by a paginated TestRail end point, one page at a time.
+ *
+ * Only the current page and the one being prefetched are held in memory. The next page is
+ * requested in the background as soon as the current page is handed out, so that the network
+ * round trip overlaps with the processing of the current page. A page with fewer items than
+ * the page size marks the end. So does a page that starts with the same item as the previous
+ * one, as a server that ignores the offset returns the same page over and over. Items are
+ * compared by the id returned by the given function, or using {@code equals} if there is none.
+ * {@link #close()} should be called when stopping early so that the prefetched page is discarded.
+ *
+ * As {@link Iterator} methods can't throw checked exceptions, any {@link IOException} or
+ * {@link ClientException} raised while loading a page is re-thrown wrapped in a
+ * {@link RuntimeException}.
+ *
+ * @author nullin
+ */
+public class PagedIterator<T> implements Iterator<T>, Closeable {
+
+    //shared by all iterators, threads are only kept around while there are pages to load
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-page-prefetch-%d").build());
+
+    /**
+     * Loads a single page of items
+     */
+    public interface PageLoader<T> {
+        List<T> load(int offset, int limit) throws IOException, ClientException;
+    }
+
+    private Logger logger = Logger.getLogger(PagedIterator.class.getName());
+    private final PageLoader<T> loader;
+    private final int pageSize;
+    //null to compare the items themselves
+    private final Function<? super T, ?> idFunction;
+    private int offset;
+    //id of the first item of the current page, null before the first page
+    private Object firstId;
+    private Iterator<T> current;
+    private Future<List<T>> next;
+
+    public PagedIterator(PageLoader<T> loader, int pageSize) {
+        this(loader, pageSize, null);
+    }
+
+    /**
+     * @param loader loads the pages
+     * @param pageSize number of items per page
+     * @param idFunction returns the id of an item, used to detect that a page was returned again.
+     *                   If null, items are compared using {@code equals}.
+     */
+    public PagedIterator(PageLoader<T> loader, int pageSize, Function<? super T, ?> idFunction) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size should be a positive integer");
+        }
+        this.loader = loader;
+        this.pageSize = pageSize;
+        this.idFunction = idFunction;
+        this.next = prefetch(0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (current == null || !current.hasNext()) {
+            if (next == null) {
+                return false;
+            }
+            List<T> page = getPage(next);
+            next = null;
+            if (!page.isEmpty()) {
+                Object pageFirstId = idFunction == null ? page.get(0) : idFunction.apply(page.get(0));
+                if (firstId != null && Objects.equal(firstId, pageFirstId)) {
+                    logger.warning("Page at offset " + offset + " starts with the same item as the previous page, " +
+                            "the server seems to ignore the offset. Stopping.");
+                    current = null;
+                    return false;
+                }
+                firstId = pageFirstId;
+            }
+            //a server that ignores the limit returns more items than requested, so treat that as the last page too
+            if (page.size() == pageSize) {
+                offset += pageSize;
+                next = prefetch(offset);
+            }
+            current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Items can't be removed from TestRail via iterator");
+    }
+
+    /**
+     * Stops iterating and discards any page that is being prefetched
+     */
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        current = null;
+    }
+
+    private Future<List<T>> prefetch(final int pageOffset) {
+        return PREFETCH_EXECUTOR.submit(new Callable<List<T>>() {
+            @Override
+            public List<T> call() throws Exception {
+                return loader.load(pageOffset, pageSize);
+            }
+        });
+    }
+
+    private List<T> getPage(Future<List<T>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading page at offset " + offset, e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
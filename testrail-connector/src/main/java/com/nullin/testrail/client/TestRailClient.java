@@ -5,11 +5,14 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Function;
+import com.nullin.testrail.client.request.CaseRequest;
+import com.nullin.testrail.client.request.NameRequest;
+import com.nullin.testrail.client.request.PlanEntryRequest;
+import com.nullin.testrail.client.request.PlanRequest;
+import com.nullin.testrail.client.request.ResultRequest;
+import com.nullin.testrail.client.request.ResultsRequest;
+import com.nullin.testrail.client.request.SectionRequest;
 import com.nullin.testrail.dto.Case;
 import com.nullin.testrail.dto.Milestone;
 import com.nullin.testrail.dto.Plan;
@@ -19,6 +22,7 @@ import com.nullin.testrail.dto.Run;
 import com.nullin.testrail.dto.Section;
 import com.nullin.testrail.dto.Suite;
 import com.nullin.testrail.dto.Test;
+import org.apache.http.pool.PoolStats;
 
 /**
  * TestRail Client for endpoints described at
@@ -33,10 +37,30 @@ import com.nullin.testrail.dto.Test;
  */
 public class TestRailClient {
 
+    //ids of the items returned by the paginated end points, see PagedIterator
+    private static final Function<Result, Integer> RESULT_ID = new Function<Result, Integer>() {
+        @Override
+        public Integer apply(Result result) {
+            return result.id;
+        }
+    };
+    private static final Function<Test, Integer> TEST_ID = new Function<Test, Integer>() {
+        @Override
+        public Integer apply(Test test) {
+            return test.id;
+        }
+    };
+    private static final Function<Case, Integer> CASE_ID = new Function<Case, Integer>() {
+        @Override
+        public Integer apply(Case testCase) {
+            return testCase.id;
+        }
+    };
+
     //underlying api client
     private APIClient client;
     //(de)-serializes objects to/from json
-    private ObjectMapper objectMapper;
+    private JsonCodec codec;
 
     /**
      * Creates an instance of the client and setups up required state
@@ -46,12 +70,41 @@ public class TestRailClient {
      * @param password
      */
     public TestRailClient(String url, String username, String password) {
-        client = new APIClient(url, username, password);
-        objectMapper = new ObjectMapper();
-        objectMapper.configure(SerializationFeature.WRITE_NULL_MAP_VALUES, false);
-        objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-        //TODO: should probably remove this
-        objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        this(url, username, password, new ConnectionConfig());
+    }
+
+    /**
+     * Creates an instance of the client that uses the specified connection settings
+     *
+     * @param url
+     * @param username
+     * @param password
+     * @param connectionConfig
+     */
+    public TestRailClient(String url, String username, String password, ConnectionConfig connectionConfig) {
+        client = new APIClient(url, username, password, connectionConfig);
+        codec = new JsonCodec();
+    }
+
+    /**
+     * @return current statistics of the underlying HTTP connection pool
+     */
+    public PoolStats getPoolStats() {
+        return client.getPoolStats();
+    }
+
+    /**
+     * @return request counts, latencies and bytes transferred, per end point
+     */
+    public ApiMetrics getMetrics() {
+        return client.getMetrics();
+    }
+
+    /**
+     * Releases the underlying HTTP connections
+     */
+    public void close() throws IOException {
+        client.close();
     }
 
     /*
@@ -59,7 +112,7 @@ public class TestRailClient {
      */
 
     public Plan getPlan(int planId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_plan/" + planId), Plan.class);
+        return client.invokeHttpGet("get_plan/" + planId, codec.reader(Plan.class));
     }
 
     public List<Plan> getPlans(int projectId, Map<String, String> filters)
@@ -70,34 +123,28 @@ public class TestRailClient {
                    url += "&" + entry.getKey() + "=" + entry.getValue();
                }
            }
-           return objectMapper.readValue(client.invokeHttpGet(url), new TypeReference<List<Plan>>(){});
+           return client.invokeHttpGet(url, codec.listReader(Plan.class));
        }
 
     public Plan addPlan(int projectId, String name, Integer milestoneId, List<PlanEntry> entries)
             throws IOException, ClientException {
-        Map<String, Object> body = new HashMap<String, Object>();
-        body.put("name", name);
-        if (milestoneId != null) {
-            body.put("milestone_id", String.valueOf(milestoneId));
-        }
-        if (entries != null) {
-            body.put("entries", entries);
-        }
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_plan/" + projectId, objectMapper.writeValueAsString(body)),
-                Plan.class);
+        PlanRequest body = new PlanRequest();
+        body.name = name;
+        body.milestoneId = milestoneId;
+        body.entries = entries;
+        return client.invokeHttpPost("add_plan/" + projectId, codec.write(body),
+                codec.reader(Plan.class));
     }
 
     public PlanEntry addPlanEntry(int planId, int suiteId) throws IOException, ClientException {
-        Map<String, String> body = new HashMap<String, String>();
-        body.put("suite_id", String.valueOf(suiteId));
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_plan_entry/" + planId, objectMapper.writeValueAsString(body)),
-                PlanEntry.class);
+        PlanEntryRequest body = new PlanEntryRequest();
+        body.suiteId = suiteId;
+        return client.invokeHttpPost("add_plan_entry/" + planId, codec.write(body),
+                codec.reader(PlanEntry.class));
     }
 
     public Plan closePlan(int planId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpPost("close_plan/" + planId, ""), Plan.class);
+        return client.invokeHttpPost("close_plan/" + planId, "", codec.reader(Plan.class));
     }
 
     public void deletePlan(int planId) throws IOException, ClientException {
@@ -110,7 +157,7 @@ public class TestRailClient {
 
     public List<Result> getResults(int testId) throws IOException, ClientException {
         String url = "get_results/" + testId;
-        return objectMapper.readValue(client.invokeHttpGet(url), new  TypeReference<List<Result>>(){});
+        return client.invokeHttpGet(url, codec.listReader(Result.class));
     }
 
     public List<Result> getResultsForRun(int runId, Map<String, String> filters) throws IOException, ClientException {
@@ -120,7 +167,26 @@ public class TestRailClient {
                 url += "&" + entry.getKey() + "=" + entry.getValue();
             }
         }
-        return objectMapper.readValue(client.invokeHttpGet(url), new  TypeReference<List<Result>>(){});
+        return client.invokeHttpGet(url, codec.listReader(Result.class));
+    }
+
+    /**
+     * Lazily iterates over the results of a run, fetching {@code pageSize} results at a time
+     * and prefetching the next page while the current one is being consumed
+     *
+     * @param runId id of the run
+     * @param filters filters supported by {@code get_results_for_run}, except limit and offset
+     * @param pageSize number of results per request
+     * @return iterator over the results. Should be closed if not fully consumed.
+     */
+    public PagedIterator<Result> iterateResultsForRun(final int runId, Map<String, String> filters, int pageSize) {
+        final Map<String, String> pageFilters = getPageFilters(filters);
+        return new PagedIterator<Result>(new PagedIterator.PageLoader<Result>() {
+            @Override
+            public List<Result> load(int offset, int limit) throws IOException, ClientException {
+                return getResultsForRun(runId, getPageFilters(pageFilters, offset, limit));
+            }
+        }, pageSize, RESULT_ID);
     }
 
     /**
@@ -129,22 +195,44 @@ public class TestRailClient {
      */
     public List<Result> getResultsForCase(int runId, int caseId) throws IOException, ClientException {
         String url = "get_results_for_case/" + runId + "/" + caseId + "&limit=10";
-        return objectMapper.readValue(client.invokeHttpGet(url), new  TypeReference<List<Result>>(){});
+        return client.invokeHttpGet(url, codec.listReader(Result.class));
     }
 
     public Result addResultForCase(int runId, int caseId, int statusId, String comment)
             throws IOException, ClientException {
         String url = "add_result_for_case/" + runId + "/" + caseId;
-        Map<String, String> body = new HashMap<String, String>();
-        body.put("status_id", String.valueOf(statusId));
-        body.put("comment", comment);
-        return objectMapper.readValue(client.invokeHttpPost(url, objectMapper.writeValueAsString(body)), Result.class);
+        ResultRequest body = new ResultRequest();
+        body.statusId = statusId;
+        body.comment = comment;
+        return client.invokeHttpPost(url, codec.write(body), codec.reader(Result.class));
     }
 
     public Result addResultForCase(int runId, int caseId, Map<String, Object> properties)
             throws IOException, ClientException {
         String url = "add_result_for_case/" + runId + "/" + caseId;
-        return objectMapper.readValue(client.invokeHttpPost(url, objectMapper.writeValueAsString(properties)), Result.class);
+        return client.invokeHttpPost(url, codec.write(properties),
+                codec.reader(Result.class));
+    }
+
+    public Result addResultForCase(int runId, int caseId, ResultRequest result)
+            throws IOException, ClientException {
+        String url = "add_result_for_case/" + runId + "/" + caseId;
+        return client.invokeHttpPost(url, codec.write(result), codec.reader(Result.class));
+    }
+
+    /**
+     * Adds results for multiple cases in the same run with a single request. Each result
+     * needs to specify the case id.
+     *
+     * @param runId id of the run
+     * @param results list of results to be added
+     * @return the results that were added
+     */
+    public List<Result> addResultsForCases(int runId, List<ResultRequest> results)
+            throws IOException, ClientException {
+        String url = "add_results_for_cases/" + runId;
+        return client.invokeHttpPost(url, codec.write(new ResultsRequest(results)),
+                codec.listReader(Result.class));
     }
 
     /*
@@ -152,11 +240,29 @@ public class TestRailClient {
      */
 
     public Test getTest(int testId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_test/" + testId), Test.class);
+        return client.invokeHttpGet("get_test/" + testId, codec.reader(Test.class));
     }
 
     public List<Test> getTests(int runId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_tests/" + runId), new TypeReference<List<Test>>(){});
+        return client.invokeHttpGet("get_tests/" + runId, codec.listReader(Test.class));
+    }
+
+    /**
+     * Lazily iterates over the tests of a run, fetching {@code pageSize} tests at a time
+     * and prefetching the next page while the current one is being consumed
+     *
+     * @param runId id of the run
+     * @param pageSize number of tests per request
+     * @return iterator over the tests. Should be closed if not fully consumed.
+     */
+    public PagedIterator<Test> iterateTests(final int runId, int pageSize) {
+        return new PagedIterator<Test>(new PagedIterator.PageLoader<Test>() {
+            @Override
+            public List<Test> load(int offset, int limit) throws IOException, ClientException {
+                return client.invokeHttpGet("get_tests/" + runId + "&limit=" + limit + "&offset=" + offset,
+                        codec.listReader(Test.class));
+            }
+        }, pageSize, TEST_ID);
     }
 
     /*
@@ -165,18 +271,17 @@ public class TestRailClient {
 
     public Case addCase(int sectionId, String title, Map<String, String> fields)
             throws IOException, ClientException {
-        Map<String, String> body = new HashMap<String, String>();
-        body.put("title", title);
+        CaseRequest body = new CaseRequest();
+        body.title = title;
         if (fields != null) {
-            body.putAll(fields);
+            body.getFields().putAll(fields);
         }
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_case/" + sectionId, objectMapper.writeValueAsString(body)),
-                Case.class);
+        return client.invokeHttpPost("add_case/" + sectionId, codec.write(body),
+                codec.reader(Case.class));
     }
 
     public Case getCase(int caseId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_case/" + caseId), Case.class);
+        return client.invokeHttpGet("get_case/" + caseId, codec.reader(Case.class));
     }
 
     public List<Case> getCases(int projectId, int suiteId, int sectionId, Map<String, String> filters)
@@ -193,7 +298,29 @@ public class TestRailClient {
                 url += "&" + entry.getKey() + "=" + entry.getValue();
             }
         }
-        return objectMapper.readValue(client.invokeHttpGet(url), new TypeReference<List<Case>>(){});
+        return client.invokeHttpGet(url, codec.listReader(Case.class));
+    }
+
+    /**
+     * Lazily iterates over the cases, fetching {@code pageSize} cases at a time and prefetching
+     * the next page while the current one is being consumed
+     *
+     * @param projectId
+     * @param suiteId
+     * @param sectionId
+     * @param filters filters supported by {@code get_cases}, except limit and offset
+     * @param pageSize number of cases per request
+     * @return iterator over the cases. Should be closed if not fully consumed.
+     */
+    public PagedIterator<Case> iterateCases(final int projectId, final int suiteId, final int sectionId,
+                                            Map<String, String> filters, int pageSize) {
+        final Map<String, String> pageFilters = getPageFilters(filters);
+        return new PagedIterator<Case>(new PagedIterator.PageLoader<Case>() {
+            @Override
+            public List<Case> load(int offset, int limit) throws IOException, ClientException {
+                return getCases(projectId, suiteId, sectionId, getPageFilters(pageFilters, offset, limit));
+            }
+        }, pageSize, CASE_ID);
     }
 
     /**
@@ -220,12 +347,33 @@ public class TestRailClient {
                 url += "&" + entry.getKey() + "=" + entry.getValue();
             }
         }
-        return objectMapper.readValue(client.invokeHttpGet(url), new TypeReference<List<Map<String, Object>>>(){});
+        return client.invokeHttpGet(url, codec.mapListReader());
     }
 
     public Case updateCase(int caseId, Map<String, Object> fields) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpPost("update_case/" + caseId,
-                objectMapper.writeValueAsString(fields)), Case.class);
+        return client.invokeHttpPost("update_case/" + caseId,
+                codec.write(fields), codec.reader(Case.class));
+    }
+
+    /*
+    Pagination
+     */
+
+    private Map<String, String> getPageFilters(Map<String, String> filters) {
+        Map<String, String> pageFilters = new HashMap<String, String>();
+        if (filters != null) {
+            pageFilters.putAll(filters);
+        }
+        pageFilters.remove("limit");
+        pageFilters.remove("offset");
+        return pageFilters;
+    }
+
+    private Map<String, String> getPageFilters(Map<String, String> filters, int offset, int limit) {
+        Map<String, String> pageFilters = new HashMap<String, String>(filters);
+        pageFilters.put("limit", String.valueOf(limit));
+        pageFilters.put("offset", String.valueOf(offset));
+        return pageFilters;
     }
 
     /*
@@ -234,17 +382,16 @@ public class TestRailClient {
 
     public Section addSection(int projectId, String name, int parentId, int suiteId)
             throws IOException, ClientException {
-        Map<String, String> body = new HashMap<String, String>();
+        SectionRequest body = new SectionRequest();
         if (suiteId > 0) {
-            body.put("suite_id", String.valueOf(suiteId));
+            body.suiteId = suiteId;
         }
         if (parentId > 0) {
-            body.put("parent_id", String.valueOf(parentId));
+            body.parentId = parentId;
         }
-        body.put("name", name);
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_section/" + projectId, objectMapper.writeValueAsString(body)),
-                Section.class);
+        body.name = name;
+        return client.invokeHttpPost("add_section/" + projectId, codec.write(body),
+                codec.reader(Section.class));
     }
 
     /*
@@ -252,19 +399,17 @@ public class TestRailClient {
      */
 
     public Suite addSuite(int projectId, String name) throws IOException, ClientException {
-        Map<String, String> body = new HashMap<String, String>();
-        body.put("name", name);
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_suite/" + projectId, objectMapper.writeValueAsString(body)), Suite.class);
+        NameRequest body = new NameRequest(name, null);
+        return client.invokeHttpPost("add_suite/" + projectId, codec.write(body),
+                codec.reader(Suite.class));
     }
 
     public Suite getSuite(int suiteId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_suite/" + suiteId), Suite.class);
+        return client.invokeHttpGet("get_suite/" + suiteId, codec.reader(Suite.class));
     }
 
     public List<Suite> getSuites(int projectId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_suites/" + projectId),
-                new TypeReference<List<Suite>>(){});
+        return client.invokeHttpGet("get_suites/" + projectId, codec.listReader(Suite.class));
     }
 
     /*
@@ -272,22 +417,18 @@ public class TestRailClient {
      */
 
     public Milestone getMilestone(int milestoneId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_milestone/" + milestoneId), Milestone.class);
+        return client.invokeHttpGet("get_milestone/" + milestoneId, codec.reader(Milestone.class));
     }
 
     public List<Milestone> getMilestones(int projectId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_milestones/" + projectId),
-                new TypeReference<List<Milestone>>(){});
+        return client.invokeHttpGet("get_milestones/" + projectId,
+                codec.listReader(Milestone.class));
     }
 
     public Milestone addMilestone(int projectId, String name, String description) throws IOException, ClientException {
-        Map<String, String> body = new HashMap<String, String>();
-        body.put("name", name);
-        if (description != null) {
-            body.put("description", description);
-        }
-        return objectMapper.readValue(
-                client.invokeHttpPost("add_milestone/" + projectId, objectMapper.writeValueAsString(body)), Milestone.class);
+        NameRequest body = new NameRequest(name, description);
+        return client.invokeHttpPost("add_milestone/" + projectId, codec.write(body),
+                codec.reader(Milestone.class));
     }
 
     /*
@@ -295,7 +436,7 @@ public class TestRailClient {
      */
 
     public Run getRun(int runId) throws IOException, ClientException {
-        return objectMapper.readValue(client.invokeHttpGet("get_run/" + runId), Run.class);
+        return client.invokeHttpGet("get_run/" + runId, codec.reader(Run.class));
     }
 
 }
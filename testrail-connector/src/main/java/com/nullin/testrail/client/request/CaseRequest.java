@@ -0,0 +1,26 @@
+package com.nullin.testrail.client.request;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Body of a request to add a test case. Any other (including custom) fields are
+ * sent as is, e.g. {@code custom_automation_id}.
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class CaseRequest {
+
+    public String title;
+    private Map<String, String> fields = new HashMap<String, String>();
+
+    @JsonAnyGetter
+    public Map<String, String> getFields() {
+        return fields;
+    }
+
+}
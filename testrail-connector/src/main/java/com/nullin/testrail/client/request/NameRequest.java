@@ -0,0 +1,24 @@
+package com.nullin.testrail.client.request;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Body of a request to add an object that is described by a name and an optional
+ * description, i.e. suites and milestones
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class NameRequest {
+
+    public String name;
+    public String description;
+
+    public NameRequest() {}
+
+    public NameRequest(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.nullin.testrail.client.request;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Body of a request to add an entry to a test plan
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PlanEntryRequest {
+
+    @JsonProperty("suite_id")
+    public Integer suiteId;
+
+}
@@ -0,0 +1,22 @@
+package com.nullin.testrail.client.request;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.nullin.testrail.dto.PlanEntry;
+
+/**
+ * Body of a request to add a test plan
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class PlanRequest {
+
+    public String name;
+    @JsonProperty("milestone_id")
+    public Integer milestoneId;
+    public List<PlanEntry> entries;
+
+}
@@ -0,0 +1,26 @@
+package com.nullin.testrail.client.request;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Body of a request to add a test result. The case id is only needed when
+ * adding results for multiple cases in one request.
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ResultRequest {
+
+    @JsonProperty("case_id")
+    public Integer caseId;
+    @JsonProperty("status_id")
+    public Integer statusId;
+    public String comment;
+    public String elapsed;
+    public String version;
+    public String defects;
+    @JsonProperty("assignedto_id")
+    public Integer assignedTo;
+
+}
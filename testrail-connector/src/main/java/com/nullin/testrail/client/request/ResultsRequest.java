@@ -0,0 +1,20 @@
+package com.nullin.testrail.client.request;
+
+import java.util.List;
+
+/**
+ * Body of a request to add results for multiple cases in a run
+ *
+ * @author nullin
+ */
+public class ResultsRequest {
+
+    public List<ResultRequest> results;
+
+    public ResultsRequest() {}
+
+    public ResultsRequest(List<ResultRequest> results) {
+        this.results = results;
+    }
+
+}
@@ -0,0 +1,20 @@
+package com.nullin.testrail.client.request;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Body of a request to add a section
+ *
+ * @author nullin
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class SectionRequest {
+
+    public String name;
+    @JsonProperty("suite_id")
+    public Integer suiteId;
+    @JsonProperty("parent_id")
+    public Integer parentId;
+
+}
@@ -15,6 +15,8 @@ public class Plan {
     public String name;
     @JsonProperty("milestone_id")
     public Integer milestoneId;
+    @JsonProperty("is_completed")
+    public Boolean isCompleted;
     public List<PlanEntry> entries;
 
 }
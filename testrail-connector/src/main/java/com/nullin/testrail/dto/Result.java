@@ -15,5 +15,8 @@ public class Result {
     @JsonProperty("status_id")
     public Integer statusId;
     public String comment;
+    //creation time, in seconds since the epoch
+    @JsonProperty("created_on")
+    public Long createdOn;
 
 }
@@ -28,5 +28,7 @@ public class Run {
     @JsonProperty("config_ids")
     public List<Integer> configIds;
     public String config;
+    @JsonProperty("is_completed")
+    public Boolean isCompleted;
 
 }
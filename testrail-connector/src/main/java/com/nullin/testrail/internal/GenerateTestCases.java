@@ -1,123 +1,355 @@
 package com.nullin.testrail.internal;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nullin.testrail.ResultJournal;
 import com.nullin.testrail.client.TestRailClient;
+import com.nullin.testrail.client.request.ResultRequest;
 import com.nullin.testrail.dto.Section;
 import com.nullin.testrail.dto.Suite;
+import com.nullin.testrail.metrics.Histogram;
 
 /**
- * Simple class to generate some different kinds of projects with ~10000
- * test cases. Used it for testing out some different scenarios while evaluating
- * TestRail
+ * Generates projects with many test cases, or replays the results recorded by a reporter in a
+ * {@link ResultJournal}. Used it for testing out some different scenarios while evaluating TestRail,
+ * and for its capacity testing.
+ *
+ * Section trees are created breadth first, a level at a time, with all the sections of a level created
+ * in parallel. Cases are then added to leaf sections picked at random. Requests are sent by a pool of
+ * worker threads, with a bounded number of them queued. The throughput and latency percentiles (within
+ * 6.25%, see {@link Histogram}) of each kind of request since the previous report are printed as it runs,
+ * and the overall ones at the end.
+ *
+ * Usage:
+ * <pre>
+ *     GenerateTestCases {testrail URL} {testrail user} {testrail passwd} generate {project id}
+ *     GenerateTestCases {testrail URL} {testrail user} {testrail passwd} replay {journal file}
+ * </pre>
+ *
+ * Configured with the {@code generator.threads} (10), {@code generator.reportIntervalSeconds} (10),
+ * {@code generator.suites} (0, to use the {@code generator.suiteId} suite, 0 for single suite projects),
+ * {@code generator.roots} (50), {@code generator.depth} (2), {@code generator.children} (4) and
+ * {@code generator.cases} (10000) system properties. When replaying, {@code generator.replayRunId}
+ * sends all the results to another run and {@code generator.replayBatchSize} (1) sends them with
+ * {@code add_results_for_cases}, as the reporter does when sending results in bulk, when more than 1.
+ * Results are sent at the pace they were recorded (see {@code testRail.journalKeep}), sped up by
+ * {@code generator.replaySpeed} (1), or as fast as possible if it is 0.
  *
  * @author nullin
  */
 public class GenerateTestCases {
 
-    private TestRailClient client;
+    private static final String ADD_SUITE = "add_suite";
+    private static final String ADD_SECTION = "add_section";
+    private static final String ADD_CASE = "add_case";
+    private static final String ADD_RESULT = "add_result_for_case";
+    private static final String ADD_RESULTS = "add_results_for_cases";
+
+    private static Logger logger = Logger.getLogger(GenerateTestCases.class.getName());
+
+    private final TestRailClient client;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService reporter;
+    //bounds the requests submitted, but not yet sent
+    private final int maxQueued;
+    private final Semaphore queued;
+    private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+    private final long startNanos = System.nanoTime();
 
     public GenerateTestCases(String[] args) {
         client = new TestRailClient(args[0], args[1], args[2]);
+        int threads = Integer.getInteger("generator.threads", 10);
+        executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("generator-%d").build());
+        maxQueued = threads * 2;
+        queued = new Semaphore(maxQueued);
+        for (String name : new String[] {ADD_SUITE, ADD_SECTION, ADD_CASE, ADD_RESULT, ADD_RESULTS}) {
+            operations.put(name, new Operation(name));
+        }
+
+        long interval = Integer.getInteger("generator.reportIntervalSeconds", 10);
+        reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("generator-reporter").build());
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(false);
+            }
+        }, interval, interval, TimeUnit.SECONDS);
     }
 
     public static void main(String[] args) throws Exception {
-        GenerateTestCases tcs = new GenerateTestCases(args);
-        tcs.generateType1();
-        tcs.generateType2();
-        tcs.generateType3();
-        tcs.generateType4();
+        GenerateTestCases generator = new GenerateTestCases(args);
+        try {
+            if ("replay".equals(args[3])) {
+                generator.replay(new File(args[4]));
+            } else {
+                generator.generate(Integer.parseInt(args[4]));
+            }
+        } finally {
+            generator.close();
+        }
     }
 
-    private void generateType1() throws Exception {
-        List<Integer> sizes = new ArrayList<Integer>();
-        sizes.add(100);
-        sizes.add(50);
-        sizes.add(25);
-        sizes.add(25);
-
-        int projectId = 8;
-        for (int i = 0 ; i < 50 ; i++) {
-            Section section = client.addSection(projectId, "Section " + UUID.randomUUID(), 0, 0);
-            Collections.shuffle(sizes);
-            for (int j = 0 ; j < 4 ; j++) {
-                Section childSection = client.addSection(projectId, "Section " + UUID.randomUUID(), section.id, 0);
-                for (int k = 0 ; k < sizes.get(j) ; k++) {
-                    addCase(client, childSection.id);
+    /**
+     * Creates the configured suites, section trees and cases in the project
+     */
+    public void generate(final int projectId) throws Exception {
+        List<Integer> suiteIds = new ArrayList<Integer>();
+        int suites = Integer.getInteger("generator.suites", 0);
+        if (suites > 0) {
+            List<Future<Suite>> futures = new ArrayList<Future<Suite>>();
+            for (int i = 0; i < suites; i++) {
+                futures.add(submit(ADD_SUITE, new Callable<Suite>() {
+                    @Override
+                    public Suite call() throws Exception {
+                        return client.addSuite(projectId, "Suite " + UUID.randomUUID());
+                    }
+                }));
+            }
+            for (Suite suite : getAll(futures)) {
+                suiteIds.add(suite.id);
+            }
+        } else {
+            suiteIds.add(Integer.getInteger("generator.suiteId", 0));
+        }
+
+        List<Integer> leafIds = new ArrayList<Integer>();
+        for (int suiteId : suiteIds) {
+            leafIds.addAll(createSections(projectId, suiteId, Integer.getInteger("generator.roots", 50),
+                    Integer.getInteger("generator.depth", 2), Integer.getInteger("generator.children", 4)));
+        }
+        if (leafIds.isEmpty()) {
+            throw new IllegalStateException("Failed to create any section");
+        }
+
+        Random random = new Random();
+        int cases = Integer.getInteger("generator.cases", 10000);
+        for (int i = 0; i < cases; i++) {
+            final int sectionId = leafIds.get(random.nextInt(leafIds.size()));
+            submit(ADD_CASE, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    addCase(sectionId);
+                    return null;
                 }
+            });
+        }
+        awaitCompletion();
+    }
+
+    /**
+     * Creates section trees breadth first
+     *
+     * @return ids of the leaf sections
+     */
+    private List<Integer> createSections(final int projectId, final int suiteId, int roots, int depth,
+                                         int children) throws Exception {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Depth should be at least 1, got " + depth);
+        }
+        List<Integer> parentIds = Collections.singletonList(0);
+        for (int level = 0; level < depth; level++) {
+            List<Future<Section>> futures = new ArrayList<Future<Section>>();
+            for (final int parentId : parentIds) {
+                for (int i = 0; i < (level == 0 ? roots : children); i++) {
+                    futures.add(submit(ADD_SECTION, new Callable<Section>() {
+                        @Override
+                        public Section call() throws Exception {
+                            return client.addSection(projectId, "Section " + UUID.randomUUID(), parentId, suiteId);
+                        }
+                    }));
+                }
+            }
+            //the sub trees of sections that failed to be created are left out
+            parentIds = new ArrayList<Integer>();
+            for (Section section : getAll(futures)) {
+                parentIds.add(section.id);
             }
         }
+        return parentIds;
     }
 
-    private void generateType2() throws Exception {
-        List<Integer> sizes = new ArrayList<Integer>();
-        sizes.add(100);
-        sizes.add(50);
-        sizes.add(25);
-        sizes.add(25);
-
-        int projectId = 9;
-        int suiteId = 13;
-        for (int i = 0 ; i < 50 ; i++) {
-            Section section = client.addSection(projectId, "Section " + UUID.randomUUID(), 0, suiteId);
-            Collections.shuffle(sizes);
-            for (int j = 0 ; j < 4 ; j++) {
-                Section childSection = client.addSection(projectId, "Section " + UUID.randomUUID(), section.id, suiteId);
-                for (int k = 0 ; k < sizes.get(j) ; k++) {
-                    addCase(client, childSection.id);
+    /**
+     * Sends all the results recorded in the journal again, in the order and at the pace they were recorded
+     */
+    public void replay(File journalFile) throws Exception {
+        List<ResultJournal.Entry> entries = ResultJournal.readAll(journalFile);
+        System.out.println("Replaying " + entries.size() + " results from " + journalFile);
+        int replayRunId = Integer.getInteger("generator.replayRunId", 0);
+        int batchSize = Integer.getInteger("generator.replayBatchSize", 1);
+        double speed = Double.parseDouble(System.getProperty("generator.replaySpeed", "1"));
+
+        Map<Integer, List<ResultRequest>> batches = new LinkedHashMap<Integer, List<ResultRequest>>();
+        long firstRecordedMillis = 0;
+        long replayStartNanos = System.nanoTime();
+        for (ResultJournal.Entry entry : entries) {
+            if (speed > 0) {
+                if (firstRecordedMillis == 0) {
+                    firstRecordedMillis = entry.recordedMillis;
+                }
+                long delayNanos = (long) (TimeUnit.MILLISECONDS.toNanos(entry.recordedMillis - firstRecordedMillis) /
+                        speed) - (System.nanoTime() - replayStartNanos);
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
                 }
             }
+            final int runId = replayRunId > 0 ? replayRunId : entry.runId;
+            final ResultRequest result = entry.result;
+            if (batchSize <= 1) {
+                submit(ADD_RESULT, new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        client.addResultForCase(runId, result.caseId, result);
+                        return null;
+                    }
+                });
+                continue;
+            }
+            List<ResultRequest> batch = batches.get(runId);
+            if (batch == null) {
+                batches.put(runId, batch = new ArrayList<ResultRequest>(batchSize));
+            }
+            batch.add(result);
+            if (batch.size() == batchSize) {
+                submitResults(runId, batches.remove(runId));
+            }
+        }
+        for (Map.Entry<Integer, List<ResultRequest>> batch : batches.entrySet()) {
+            submitResults(batch.getKey(), batch.getValue());
         }
+        awaitCompletion();
     }
 
-    private void generateType3() throws Exception {
-        List<Integer> sizes = new ArrayList<Integer>();
-        sizes.add(100);
-        sizes.add(50);
-        sizes.add(25);
-        sizes.add(25);
-
-        int projectId = 11;
-        int suiteId = 15;
-        for (int i = 0 ; i < 5 ; i++) {
-            Section section = client.addSection(projectId, "Section " + UUID.randomUUID(), 0, suiteId);
-            Collections.shuffle(sizes);
-            for (int j = 0 ; j < 4 ; j++) {
-                Section childSection = client.addSection(projectId, "Section " + UUID.randomUUID(), section.id, suiteId);
-                for (int k = 0 ; k < sizes.get(j) ; k++) {
-                    addCase(client, childSection.id);
+    private void submitResults(final int runId, final List<ResultRequest> results) throws InterruptedException {
+        submit(ADD_RESULTS, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                client.addResultsForCases(runId, results);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Waits for the requests submitted so far, then prints the final report
+     */
+    public void close() throws Exception {
+        awaitCompletion();
+        reporter.shutdownNow();
+        executor.shutdown();
+        report(true);
+        client.close();
+    }
+
+    /*
+    Request execution
+     */
+
+    /**
+     * Submits a request to the workers, waiting while too many requests are queued. Failures are
+     * counted and logged.
+     */
+    private <T> Future<T> submit(String name, final Callable<T> request) throws InterruptedException {
+        final Operation operation = operations.get(name);
+        queued.acquire();
+        return executor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                long start = System.nanoTime();
+                try {
+                    return request.call();
+                } catch (Exception ex) {
+                    operation.failed.incrementAndGet();
+                    logger.warning(operation.name + " failed. Ran into exception " + ex.getMessage());
+                    throw ex;
+                } finally {
+                    operation.latency.record((System.nanoTime() - start) / 1000);
+                    queued.release();
                 }
             }
+        });
+    }
+
+    /**
+     * @return results of the requests that succeeded
+     */
+    private static <T> List<T> getAll(List<Future<T>> futures) throws InterruptedException {
+        List<T> results = new ArrayList<T>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException ex) {
+                //already counted and logged
+            }
         }
+        return results;
     }
 
-    private void generateType4() throws Exception {
-        List<Integer> sizes = new ArrayList<Integer>();
-        sizes.add(100);
-        sizes.add(50);
-        sizes.add(25);
-        sizes.add(25);
-
-        int projectId = 12;
-        for (int i = 0 ; i < 6 ; i++) {
-            Suite suite = client.addSuite(projectId, "Suite " + UUID.randomUUID());
-            Collections.shuffle(sizes);
-            for (int j = 0 ; j < 4 ; j++) {
-                Section childSection = client.addSection(projectId, "Section " + UUID.randomUUID(), 0, suite.id);
-                for (int k = 0 ; k < sizes.get(j) ; k++) {
-                    addCase(client, childSection.id);
+    private void awaitCompletion() throws InterruptedException {
+        queued.acquire(maxQueued);
+        queued.release(maxQueued);
+    }
+
+    private void report(boolean last) {
+        long now = System.nanoTime();
+        StringBuilder sb = new StringBuilder(last ? "Done in " : "After ")
+                .append(TimeUnit.NANOSECONDS.toSeconds(now - startNanos)).append("s");
+        for (Operation operation : operations.values()) {
+            //the rate and latencies of the requests sent since the last report while running, of all of
+            //them at the end
+            long[] bucketCounts = operation.latency.getBucketCounts();
+            long[] counts = bucketCounts.clone();
+            long count = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (!last) {
+                    counts[i] -= operation.lastBucketCounts[i];
                 }
+                count += counts[i];
+            }
+            operation.lastBucketCounts = bucketCounts;
+            long failed = operation.failed.get();
+            long intervalFailed = failed - (last ? 0 : operation.lastFailed);
+            operation.lastFailed = failed;
+            double seconds = (now - (last ? startNanos : operation.lastReportNanos)) / 1e9;
+            operation.lastReportNanos = now;
+            if (count == 0) {
+                continue;
             }
+            Histogram latency = operation.latency;
+            sb.append(String.format("%n%-21s %8d sent %6d failed %8.1f/s, latency p50 %7.1f p90 %7.1f " +
+                    "p99 %7.1f max %7.1f ms", operation.name, count, intervalFailed, count / seconds,
+                    latency.getPercentile(counts, 50) / 1000.0, latency.getPercentile(counts, 90) / 1000.0,
+                    latency.getPercentile(counts, 99) / 1000.0, latency.getPercentile(counts, 100) / 1000.0));
         }
+        System.out.println(sb);
     }
 
-    private void addCase(TestRailClient client, int sectionId) throws Exception {
+    /*
+    Generated data
+     */
+
+    private void addCase(int sectionId) throws Exception {
         Map<String, String> fields = new HashMap<String, String>();
         fields.put("custom_expected", "Expected\n\n" + getString(20));
         fields.put("custom_preconds", "Preconds\n\n" + getString(5));
@@ -129,11 +361,30 @@ public class GenerateTestCases {
         StringBuilder sb = new StringBuilder();
         for (int c = 0 ; c < i ; c++) {
             sb.append(UUID.randomUUID().toString());
-            if (c % (new Random().nextInt(i) + 1) == 0) {
+            if (c % (ThreadLocalRandom.current().nextInt(i) + 1) == 0) {
                 sb.append("\n");
             }
         }
         return sb.toString();
     }
 
+    /**
+     * Statistics of a kind of request
+     */
+    private class Operation {
+        final String name;
+        //time to send the request and parse the response, in microseconds, with 16 sub-buckets per
+        //power of two
+        final Histogram latency = new Histogram(4);
+        final AtomicLong failed = new AtomicLong();
+        //only accessed while reporting
+        long[] lastBucketCounts = latency.getBucketCounts();
+        long lastFailed;
+        long lastReportNanos = startNanos;
+
+        Operation(String name) {
+            this.name = name;
+        }
+    }
+
 }
@@ -0,0 +1,843 @@
+package com.nullin.testrail.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub of the TestRail API end points used by
+ * {@link com.nullin.testrail.client.TestRailClient}, to exercise the client, listener and reporter
+ * without a TestRail instance, e.g. to load test the reporter.
+ *
+ * Plans, runs, tests, cases, sections, suites, milestones and results are kept in memory.
+ * Entities are plain maps, so custom fields (e.g. {@code custom_automation_id}) sent when adding
+ * or updating cases are stored and returned as is, and are copied to the tests of the case. List
+ * end points support {@code limit} and {@code offset}. The state can also be set up directly using
+ * {@link #addSuite}, {@link #addCase}, {@link #addPlan} and {@link #addPlanEntry}.
+ *
+ * Latency, errors (status 500) and throttling (status 429 with a {@code Retry-After} header) can be
+ * injected into any fraction of the requests. Authentication is not checked.
+ *
+ * Responses of at least 256 bytes are gzip compressed for clients that accept it, and gzip
+ * compressed request bodies are accepted unless disabled with {@link #setAcceptCompressedRequests}.
+ *
+ * @author nullin
+ */
+public class TestRailStubServer {
+
+    private static final String API_PREFIX = "/api/v2/";
+    private static final int STATUS_UNTESTED = 3;
+    private static final int COMPRESS_MIN_BYTES = 256;
+
+    private Logger logger = Logger.getLogger(TestRailStubServer.class.getName());
+    private final ObjectMapper mapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requestCount = new AtomicLong();
+
+    //all the state below is guarded by this lock
+    private final Object lock = new Object();
+    private int nextId = 1;
+    private final Map<Integer, Map<String, Object>> suites = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> sections = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> cases = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> milestones = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> plans = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> runs = new LinkedHashMap<Integer, Map<String, Object>>();
+    private final Map<Integer, Map<String, Object>> tests = new HashMap<Integer, Map<String, Object>>();
+    //test id per case id, per run
+    private final Map<Integer, Map<Integer, Integer>> runTests = new HashMap<Integer, Map<Integer, Integer>>();
+    //results per run, oldest first
+    private final Map<Integer, List<Map<String, Object>>> runResults = new HashMap<Integer, List<Map<String, Object>>>();
+    private int resultCount;
+
+    //fault injection
+    private volatile int minLatencyMillis;
+    private volatile int maxLatencyMillis;
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile int retryAfterSeconds = 1;
+    private volatile boolean acceptCompressedRequests = true;
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public TestRailStubServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/index.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                TestRailStubServer.this.handle(exchange);
+            }
+        });
+        //requests sleeping for the injected latency shouldn't hold up others
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("testrail-stub-%d").build());
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts a stub server with a test plan for a number of suites and configurations
+     *
+     * Usage: TestRailStubServer port suites casesPerSuite [config...]
+     *
+     * Latency and error injection is configured with the {@code testRailStub.minLatencyMs},
+     * {@code testRailStub.maxLatencyMs}, {@code testRailStub.errorRate} and
+     * {@code testRailStub.throttleRate} system properties.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int suiteCount = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        int casesPerSuite = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        String[] configs = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[] {null};
+
+        TestRailStubServer stub = new TestRailStubServer(port);
+        stub.setLatencyMillis(Integer.getInteger("testRailStub.minLatencyMs", 0),
+                Integer.getInteger("testRailStub.maxLatencyMs", 0));
+        stub.setErrorRate(Double.parseDouble(System.getProperty("testRailStub.errorRate", "0")));
+        stub.setThrottleRate(Double.parseDouble(System.getProperty("testRailStub.throttleRate", "0")));
+
+        int projectId = 1;
+        int planId = stub.addPlan(projectId, "Stub plan");
+        for (int s = 1; s <= suiteCount; s++) {
+            int suiteId = stub.addSuite(projectId, "Suite " + s);
+            for (int i = 0; i < casesPerSuite; i++) {
+                stub.addCase(suiteId, "Case " + i, "com.nullin.tests.Suite" + s + "Test#test" + i);
+            }
+            stub.addPlanEntry(planId, suiteId, configs);
+        }
+        stub.start();
+        System.out.println("TestRail stub listening at " + stub.getUrl() + " with test plan " + planId);
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Started TestRail stub at " + getUrl());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return URL to create a {@link com.nullin.testrail.client.TestRailClient} with
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response by a random time between the given bounds
+     */
+    public void setLatencyMillis(int minLatencyMillis, int maxLatencyMillis) {
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+    }
+
+    /**
+     * @param errorRate fraction of requests that fail with status 500
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param throttleRate fraction of requests that are throttled with status 429
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param retryAfterSeconds value of the {@code Retry-After} header of throttled responses
+     */
+    public void setRetryAfterSeconds(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * @param acceptCompressedRequests false to reject gzip compressed request bodies with status 415
+     */
+    public void setAcceptCompressedRequests(boolean acceptCompressedRequests) {
+        this.acceptCompressedRequests = acceptCompressedRequests;
+    }
+
+    /**
+     * @return number of requests received so far, including the ones that failed or were throttled
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of results added so far
+     */
+    public int getResultCount() {
+        synchronized (lock) {
+            return resultCount;
+        }
+    }
+
+    /*
+    Setup
+     */
+
+    public int addSuite(int projectId, String name) {
+        synchronized (lock) {
+            return id(createSuite(projectId, name, null));
+        }
+    }
+
+    /**
+     * Adds a case to the default section of the suite, which is created if needed
+     *
+     * @return id of the case
+     */
+    public int addCase(int suiteId, String title, String automationId) {
+        synchronized (lock) {
+            Map<String, Object> suite = get(suites, suiteId, "suite_id");
+            Integer sectionId = (Integer) suite.get("default_section_id");
+            if (sectionId == null) {
+                sectionId = id(createSection(suiteId, null, "Test Cases", null));
+                suite.put("default_section_id", sectionId);
+            }
+            Map<String, Object> fields = new HashMap<String, Object>();
+            fields.put("title", title);
+            fields.put("custom_automation_id", automationId);
+            return id(createCase(sectionId, fields));
+        }
+    }
+
+    public int addPlan(int projectId, String name) {
+        synchronized (lock) {
+            return id(createPlan(projectId, name, null));
+        }
+    }
+
+    /**
+     * Adds an entry for the suite to the plan, with a run including all cases for every configuration
+     *
+     * @param configs configurations of the runs, or a single null for a run without configuration
+     * @return id of the entry
+     */
+    public String addPlanEntry(int planId, int suiteId, String... configs) {
+        List<Object> entryRuns = new ArrayList<Object>();
+        for (String config : configs) {
+            Map<String, Object> run = new HashMap<String, Object>();
+            run.put("config", config);
+            entryRuns.add(run);
+        }
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("suite_id", suiteId);
+        body.put("runs", entryRuns);
+        synchronized (lock) {
+            return (String) createEntry(get(plans, planId, "plan_id"), body).get("id");
+        }
+    }
+
+    /*
+    Request handling
+     */
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            injectLatency();
+            double random = ThreadLocalRandom.current().nextDouble();
+            if (random < throttleRate) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                send(exchange, 429, error("API Rate Limit Exceeded"));
+                return;
+            }
+            if (random < throttleRate + errorRate) {
+                send(exchange, 500, error("Injected failure"));
+                return;
+            }
+
+            String query = exchange.getRequestURI().getRawQuery();
+            if (query == null || !query.startsWith(API_PREFIX)) {
+                send(exchange, 404, error("Unknown API"));
+                return;
+            }
+            String[] parts = query.substring(API_PREFIX.length()).split("&");
+            String[] path = parts[0].split("/");
+            Map<String, String> params = new HashMap<String, String>();
+            for (int i = 1; i < parts.length; i++) {
+                int eq = parts[i].indexOf('=');
+                if (eq > 0) {
+                    params.put(parts[i].substring(0, eq), URLDecoder.decode(parts[i].substring(eq + 1), "UTF-8"));
+                }
+            }
+            boolean compressed = "gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            if (compressed && !acceptCompressedRequests) {
+                send(exchange, 415, error("Unsupported content encoding"));
+                return;
+            }
+            Map<String, Object> body = readBody(exchange, compressed);
+
+            byte[] response;
+            synchronized (lock) {
+                Object result = dispatch(path, params, body);
+                response = result == null ? new byte[0] : mapper.writeValueAsBytes(result);
+            }
+            send(exchange, 200, response);
+        } catch (StubException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } catch (Exception e) {
+            logger.severe("Failed to handle " + exchange.getRequestURI() + ". Ran into exception " + e);
+            send(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Object dispatch(String[] path, Map<String, String> params, Map<String, Object> body) {
+        String method = path[0];
+        switch (method) {
+            case "get_plan":
+                return get(plans, intArg(path, 1), "plan_id");
+            case "get_plans":
+                return page(getPlans(intArg(path, 1)), params);
+            case "add_plan":
+                return addPlan(intArg(path, 1), body);
+            case "add_plan_entry":
+                return createEntry(get(plans, intArg(path, 1), "plan_id"), body);
+            case "close_plan":
+                return closePlan(intArg(path, 1));
+            case "delete_plan":
+                deletePlan(intArg(path, 1));
+                return null;
+            case "get_results":
+                return page(getResults(get(tests, intArg(path, 1), "test_id"), params), params);
+            case "get_results_for_run":
+                get(runs, intArg(path, 1), "run_id");
+                return page(filterResults(runResults.get(intArg(path, 1)), null, params), params);
+            case "get_results_for_case":
+                return page(getResults(getTest(intArg(path, 1), intArg(path, 2)), params), params);
+            case "add_result_for_case":
+                return addResult(intArg(path, 1), intArg(path, 2), body);
+            case "add_results_for_cases":
+                return addResults(intArg(path, 1), body);
+            case "get_test":
+                return get(tests, intArg(path, 1), "test_id");
+            case "get_tests":
+                return page(getTests(intArg(path, 1), params), params);
+            case "add_case":
+                return createCase(intArg(path, 1), body);
+            case "get_case":
+                return get(cases, intArg(path, 1), "case_id");
+            case "get_cases":
+                return page(getCases(intArg(path, 1), params), params);
+            case "update_case":
+                return updateCase(intArg(path, 1), body);
+            case "add_section":
+                return addSection(intArg(path, 1), body);
+            case "add_suite":
+                return createSuite(intArg(path, 1), (String) body.get("name"), (String) body.get("description"));
+            case "get_suite":
+                return get(suites, intArg(path, 1), "suite_id");
+            case "get_suites":
+                return byProject(suites, intArg(path, 1));
+            case "add_milestone":
+                return addMilestone(intArg(path, 1), body);
+            case "get_milestone":
+                return get(milestones, intArg(path, 1), "milestone_id");
+            case "get_milestones":
+                return byProject(milestones, intArg(path, 1));
+            case "get_run":
+                return get(runs, intArg(path, 1), "run_id");
+            default:
+                throw new StubException("Unknown method '" + method + "'");
+        }
+    }
+
+    /*
+    Plans and runs
+     */
+
+    private Map<String, Object> createPlan(int projectId, String name, Object milestoneId) {
+        Map<String, Object> plan = entity(plans);
+        plan.put("project_id", projectId);
+        plan.put("name", name);
+        plan.put("milestone_id", milestoneId);
+        plan.put("is_completed", false);
+        plan.put("entries", new ArrayList<Object>());
+        return plan;
+    }
+
+    private Map<String, Object> addPlan(int projectId, Map<String, Object> body) {
+        Map<String, Object> plan = createPlan(projectId, (String) body.get("name"), body.get("milestone_id"));
+        List<Map<String, Object>> entries = list(body, "entries");
+        if (entries != null) {
+            for (Map<String, Object> entry : entries) {
+                createEntry(plan, entry);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Adds an entry to the plan, with the runs specified in the body or a single run without
+     * configuration. Runs include all cases of the suite unless {@code include_all} is false.
+     */
+    private Map<String, Object> createEntry(Map<String, Object> plan, Map<String, Object> body) {
+        int suiteId = toInt(body.get("suite_id"), "suite_id");
+        Map<String, Object> suite = get(suites, suiteId, "suite_id");
+        Map<String, Object> entry = new LinkedHashMap<String, Object>();
+        entry.put("id", UUID.randomUUID().toString());
+        entry.put("suite_id", suiteId);
+        entry.put("name", body.containsKey("name") ? body.get("name") : suite.get("name"));
+        List<Object> entryRuns = new ArrayList<Object>();
+        List<Map<String, Object>> runBodies = list(body, "runs");
+        if (runBodies == null || runBodies.isEmpty()) {
+            runBodies = Collections.singletonList(body);
+        }
+        for (Map<String, Object> runBody : runBodies) {
+            Map<String, Object> run = entity(runs);
+            run.put("project_id", plan.get("project_id"));
+            run.put("suite_id", suiteId);
+            run.put("plan_id", plan.get("id"));
+            run.put("name", entry.get("name"));
+            run.put("config", runBody.get("config"));
+            run.put("config_ids", runBody.get("config_ids"));
+            Object includeAll = runBody.containsKey("include_all") ? runBody.get("include_all") : body.get("include_all");
+            run.put("include_all", includeAll == null || Boolean.TRUE.equals(includeAll));
+            runTests.put(id(run), new LinkedHashMap<Integer, Integer>());
+            runResults.put(id(run), new ArrayList<Map<String, Object>>());
+
+            List<Object> caseIds = list(runBody.containsKey("case_ids") ? runBody : body, "case_ids");
+            if (Boolean.TRUE.equals(run.get("include_all"))) {
+                for (Map<String, Object> c : cases.values()) {
+                    if (suiteId == (Integer) c.get("suite_id")) {
+                        addTest(run, c);
+                    }
+                }
+            } else if (caseIds != null) {
+                for (Object caseId : caseIds) {
+                    addTest(run, get(cases, toInt(caseId, "case_ids"), "case_ids"));
+                }
+            }
+            entryRuns.add(run);
+        }
+        entry.put("runs", entryRuns);
+        TestRailStubServer.<Object>list(plan, "entries").add(entry);
+        return entry;
+    }
+
+    private List<Map<String, Object>> getPlans(int projectId) {
+        List<Map<String, Object>> summaries = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> plan : byProject(plans, projectId)) {
+            Map<String, Object> summary = new LinkedHashMap<String, Object>(plan);
+            summary.remove("entries"); //not included by TestRail either
+            summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    private Map<String, Object> closePlan(int planId) {
+        Map<String, Object> plan = get(plans, planId, "plan_id");
+        plan.put("is_completed", true);
+        for (Map<String, Object> run : getPlanRuns(plan)) {
+            run.put("is_completed", true);
+        }
+        return plan;
+    }
+
+    private void deletePlan(int planId) {
+        Map<String, Object> plan = get(plans, planId, "plan_id");
+        for (Map<String, Object> run : getPlanRuns(plan)) {
+            for (Integer testId : runTests.remove(id(run)).values()) {
+                tests.remove(testId);
+            }
+            resultCount -= runResults.remove(id(run)).size();
+            runs.remove(id(run));
+        }
+        plans.remove(planId);
+    }
+
+    private List<Map<String, Object>> getPlanRuns(Map<String, Object> plan) {
+        List<Map<String, Object>> planRuns = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> entry : TestRailStubServer.<Map<String, Object>>list(plan, "entries")) {
+            planRuns.addAll(TestRailStubServer.<Map<String, Object>>list(entry, "runs"));
+        }
+        return planRuns;
+    }
+
+    /*
+    Tests and results
+     */
+
+    private void addTest(Map<String, Object> run, Map<String, Object> c) {
+        Map<String, Object> test = entity(tests);
+        test.put("case_id", c.get("id"));
+        test.put("run_id", run.get("id"));
+        test.put("status_id", STATUS_UNTESTED);
+        test.put("title", c.get("title"));
+        for (Map.Entry<String, Object> field : c.entrySet()) {
+            if (field.getKey().startsWith("custom_")) {
+                test.put(field.getKey(), field.getValue());
+            }
+        }
+        runTests.get(id(run)).put(id(c), id(test));
+    }
+
+    private List<Map<String, Object>> getTests(int runId, Map<String, String> params) {
+        get(runs, runId, "run_id");
+        List<Integer> statusIds = intList(params.get("status_id"));
+        List<Map<String, Object>> runTestList = new ArrayList<Map<String, Object>>();
+        for (Integer testId : runTests.get(runId).values()) {
+            Map<String, Object> test = tests.get(testId);
+            if (statusIds == null || statusIds.contains(test.get("status_id"))) {
+                runTestList.add(test);
+            }
+        }
+        return runTestList;
+    }
+
+    private Map<String, Object> getTest(int runId, int caseId) {
+        get(runs, runId, "run_id");
+        Integer testId = runTests.get(runId).get(caseId);
+        if (testId == null) {
+            throw new StubException("Field :case_id is not a valid test case for run " + runId + ".");
+        }
+        return tests.get(testId);
+    }
+
+    private List<Map<String, Object>> getResults(Map<String, Object> test, Map<String, String> params) {
+        return filterResults(runResults.get((Integer) test.get("run_id")), id(test), params);
+    }
+
+    /**
+     * @return results of the run, newest first, filtered by test and by the {@code status_id},
+     *          {@code created_after} and {@code created_before} parameters
+     */
+    private List<Map<String, Object>> filterResults(List<Map<String, Object>> results, Integer testId,
+                                                    Map<String, String> params) {
+        List<Integer> statusIds = intList(params.get("status_id"));
+        long createdAfter = params.containsKey("created_after") ? Long.parseLong(params.get("created_after")) : 0;
+        long createdBefore = params.containsKey("created_before") ?
+                Long.parseLong(params.get("created_before")) : Long.MAX_VALUE;
+        List<Map<String, Object>> filtered = new ArrayList<Map<String, Object>>();
+        for (int i = results.size() - 1; i >= 0; i--) {
+            Map<String, Object> result = results.get(i);
+            long createdOn = (Long) result.get("created_on");
+            if ((testId == null || testId.equals(result.get("test_id"))) &&
+                    (statusIds == null || statusIds.contains(result.get("status_id"))) &&
+                    createdOn >= createdAfter && createdOn <= createdBefore) {
+                filtered.add(result);
+            }
+        }
+        return filtered;
+    }
+
+    private Map<String, Object> addResult(int runId, int caseId, Map<String, Object> body) {
+        Map<String, Object> test = getTest(runId, caseId);
+        if (Boolean.TRUE.equals(get(runs, runId, "run_id").get("is_completed"))) {
+            throw new StubException("Field :run_id refers to a completed test run.");
+        }
+        Map<String, Object> result = entity(null);
+        result.put("test_id", test.get("id"));
+        for (String field : Arrays.asList("status_id", "comment", "elapsed", "version", "defects", "assignedto_id")) {
+            result.put(field, body.get(field));
+        }
+        result.put("created_on", System.currentTimeMillis() / 1000);
+        if (body.get("status_id") != null) {
+            test.put("status_id", body.get("status_id"));
+        }
+        runResults.get(runId).add(result);
+        resultCount++;
+        return result;
+    }
+
+    private List<Map<String, Object>> addResults(int runId, Map<String, Object> body) {
+        List<Map<String, Object>> results = list(body, "results");
+        if (results == null) {
+            throw new StubException("Field :results is a required field.");
+        }
+        //validate all results first, so that none are added if any is invalid
+        for (Map<String, Object> result : results) {
+            getTest(runId, toInt(result.get("case_id"), "case_id"));
+        }
+        List<Map<String, Object>> added = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> result : results) {
+            added.add(addResult(runId, toInt(result.get("case_id"), "case_id"), result));
+        }
+        return added;
+    }
+
+    /*
+    Suites, sections and cases
+     */
+
+    private Map<String, Object> createSuite(int projectId, String name, String description) {
+        Map<String, Object> suite = entity(suites);
+        suite.put("project_id", projectId);
+        suite.put("name", name);
+        suite.put("description", description);
+        return suite;
+    }
+
+    private Map<String, Object> createSection(int suiteId, Integer parentId, String name, String description) {
+        Map<String, Object> suite = get(suites, suiteId, "suite_id");
+        int depth = 0;
+        if (parentId != null) {
+            depth = (Integer) get(sections, parentId, "parent_id").get("depth") + 1;
+        }
+        Map<String, Object> section = entity(sections);
+        section.put("project_id", suite.get("project_id"));
+        section.put("suite_id", suiteId);
+        section.put("parent_id", parentId);
+        section.put("depth", depth);
+        section.put("name", name);
+        section.put("description", description);
+        return section;
+    }
+
+    /**
+     * Adds a section to the suite in the body or, if none is specified, to the first suite of the
+     * project (created if needed, as for projects in single suite mode)
+     */
+    private Map<String, Object> addSection(int projectId, Map<String, Object> body) {
+        Integer suiteId = body.get("suite_id") == null ? null : toInt(body.get("suite_id"), "suite_id");
+        if (suiteId == null) {
+            List<Map<String, Object>> projectSuites = byProject(suites, projectId);
+            suiteId = projectSuites.isEmpty() ? id(createSuite(projectId, "Master", null)) :
+                    id(projectSuites.get(0));
+        }
+        Integer parentId = body.get("parent_id") == null ? null : toInt(body.get("parent_id"), "parent_id");
+        return createSection(suiteId, parentId, (String) body.get("name"), (String) body.get("description"));
+    }
+
+    /**
+     * Adds a case with all the fields in the body, including custom fields, and adds a test for it
+     * to the open runs of its suite that include all cases
+     */
+    private Map<String, Object> createCase(int sectionId, Map<String, Object> body) {
+        Map<String, Object> section = get(sections, sectionId, "section_id");
+        Map<String, Object> c = entity(cases);
+        c.putAll(body);
+        c.put("section_id", sectionId);
+        c.put("suite_id", section.get("suite_id"));
+        for (Map<String, Object> run : runs.values()) {
+            if (run.get("suite_id").equals(c.get("suite_id")) && Boolean.TRUE.equals(run.get("include_all")) &&
+                    !Boolean.TRUE.equals(run.get("is_completed"))) {
+                addTest(run, c);
+            }
+        }
+        return c;
+    }
+
+    private List<Map<String, Object>> getCases(int projectId, Map<String, String> params) {
+        Integer suiteId = params.containsKey("suite_id") ? Integer.valueOf(params.get("suite_id")) : null;
+        Integer sectionId = params.containsKey("section_id") ? Integer.valueOf(params.get("section_id")) : null;
+        List<Map<String, Object>> found = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> c : cases.values()) {
+            Map<String, Object> suite = suites.get((Integer) c.get("suite_id"));
+            if (suite.get("project_id").equals(projectId) &&
+                    (suiteId == null || suiteId.equals(c.get("suite_id"))) &&
+                    (sectionId == null || sectionId.equals(c.get("section_id")))) {
+                found.add(c);
+            }
+        }
+        return found;
+    }
+
+    private Map<String, Object> updateCase(int caseId, Map<String, Object> body) {
+        Map<String, Object> c = get(cases, caseId, "case_id");
+        for (Map.Entry<String, Object> field : body.entrySet()) {
+            if (!field.getKey().equals("id") && !field.getKey().equals("suite_id")) {
+                c.put(field.getKey(), field.getValue());
+            }
+        }
+        return c;
+    }
+
+    /*
+    Milestones
+     */
+
+    private Map<String, Object> addMilestone(int projectId, Map<String, Object> body) {
+        Map<String, Object> milestone = entity(milestones);
+        milestone.put("project_id", projectId);
+        milestone.put("name", body.get("name"));
+        milestone.put("description", body.get("description"));
+        return milestone;
+    }
+
+    /*
+    Helpers
+     */
+
+    /**
+     * Creates an entity with the next id and adds it to the store, if any
+     */
+    private Map<String, Object> entity(Map<Integer, Map<String, Object>> store) {
+        Map<String, Object> entity = new LinkedHashMap<String, Object>();
+        int id = nextId++;
+        entity.put("id", id);
+        if (store != null) {
+            store.put(id, entity);
+        }
+        return entity;
+    }
+
+    private static int id(Map<String, Object> entity) {
+        return (Integer) entity.get("id");
+    }
+
+    private static Map<String, Object> get(Map<Integer, Map<String, Object>> store, int id, String field) {
+        Map<String, Object> entity = store.get(id);
+        if (entity == null) {
+            throw new StubException("Field :" + field + " is not a valid ID.");
+        }
+        return entity;
+    }
+
+    private List<Map<String, Object>> byProject(Map<Integer, Map<String, Object>> store, int projectId) {
+        List<Map<String, Object>> found = new ArrayList<Map<String, Object>>();
+        for (Map<String, Object> entity : store.values()) {
+            if (entity.get("project_id").equals(projectId)) {
+                found.add(entity);
+            }
+        }
+        return found;
+    }
+
+    private static <T> List<T> page(List<T> items, Map<String, String> params) {
+        int offset = params.containsKey("offset") ? Integer.parseInt(params.get("offset")) : 0;
+        int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+        int from = Math.min(offset, items.size());
+        return new ArrayList<T>(items.subList(from, (int) Math.min(items.size(), (long) from + limit)));
+    }
+
+    private static int intArg(String[] path, int index) {
+        if (path.length <= index) {
+            throw new StubException("Missing ID argument");
+        }
+        try {
+            return Integer.parseInt(path[index]);
+        } catch (NumberFormatException e) {
+            throw new StubException("Invalid ID argument '" + path[index] + "'");
+        }
+    }
+
+    private static int toInt(Object value, String field) {
+        if (!(value instanceof Number)) {
+            throw new StubException("Field :" + field + " is a required field.");
+        }
+        return ((Number) value).intValue();
+    }
+
+    /**
+     * @return list in the field, null if missing. Elements aren't checked, they are whatever the
+     *          JSON body (or the stub) put there
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> list(Map<String, Object> entity, String field) {
+        Object value = entity.get(field);
+        if (value != null && !(value instanceof List)) {
+            throw new StubException("Field :" + field + " is not a valid array.");
+        }
+        return (List<T>) value;
+    }
+
+    private static List<Integer> intList(String value) {
+        if (value == null) {
+            return null;
+        }
+        List<Integer> ints = new ArrayList<Integer>();
+        for (String part : value.split(",")) {
+            ints.add(Integer.valueOf(part.trim()));
+        }
+        return ints;
+    }
+
+    private Map<String, Object> readBody(HttpExchange exchange, boolean compressed) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            return Collections.emptyMap();
+        }
+        InputStream is = compressed ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody();
+        try {
+            byte[] bytes = ByteStreams.toByteArray(is);
+            if (bytes.length == 0) {
+                return Collections.emptyMap();
+            }
+            return mapper.readValue(bytes, new TypeReference<Map<String, Object>>(){});
+        } finally {
+            is.close();
+        }
+    }
+
+    private byte[] error(String message) throws IOException {
+        return mapper.writeValueAsBytes(Collections.singletonMap("error", message));
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (body.length >= COMPRESS_MIN_BYTES && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length / 4 + 64);
+            GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+            gzip.write(body);
+            gzip.close();
+            body = bytes.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream os = exchange.getResponseBody();
+            try {
+                os.write(body);
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+    private void injectLatency() throws InterruptedException {
+        int min = minLatencyMillis;
+        int max = maxLatencyMillis;
+        if (max > 0) {
+            Thread.sleep(min + ThreadLocalRandom.current().nextInt(max - min + 1));
+        }
+    }
+
+    /**
+     * Invalid request, reported with status 400 like TestRail does
+     */
+    private static class StubException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StubException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.nullin.testrail.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the request metrics of a TestRail API end point. Latencies are in milliseconds
+ * and percentiles are accurate within a factor of two (see {@link Histogram}).
+ *
+ * @author nullin
+ */
+public class EndpointStats {
+
+    private final String name;
+    private final long requests;
+    private final long errors;
+    private final long throttled;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p90Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"name", "requests", "errors", "throttled", "meanMillis", "p50Millis", "p90Millis",
+            "p99Millis", "maxMillis"})
+    public EndpointStats(String name, long requests, long errors, long throttled, double meanMillis,
+                         double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+        this.name = name;
+        this.requests = requests;
+        this.errors = errors;
+        this.throttled = throttled;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @param name name of the end point
+     * @param requests number of requests
+     * @param errors number of failed requests
+     * @param throttled number of throttled requests
+     * @param latencyMicros latency of the requests, in microseconds
+     */
+    public static EndpointStats of(String name, long requests, long errors, long throttled, Histogram latencyMicros) {
+        return new EndpointStats(name, requests, errors, throttled, latencyMicros.getMean() / 1000,
+                latencyMicros.getPercentile(50) / 1000.0, latencyMicros.getPercentile(90) / 1000.0,
+                latencyMicros.getPercentile(99) / 1000.0, latencyMicros.getMax() / 1000.0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getThrottled() {
+        return throttled;
+    }
+
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP90Millis() {
+        return p90Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d requests, %d errors, %d throttled, mean %.1fms, p50 %.1fms, p90 %.1fms, " +
+                "p99 %.1fms, max %.1fms", name, requests, errors, throttled, meanMillis, p50Millis, p90Millis,
+                p99Millis, maxMillis);
+    }
+}
@@ -0,0 +1,170 @@
+package com.nullin.testrail.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with fixed, exponentially sized buckets: by default, bucket
+ * {@code i} holds values in {@code [2^(i-1), 2^i - 1]} (bucket 0 holds 0), and the last bucket
+ * holds everything larger. Percentiles are reported as the upper bound of the bucket they fall in,
+ * i.e. they are accurate within a factor of two.
+ *
+ * For more precision, each power of two can be split into {@code 2^subBucketBits} linear sub-buckets,
+ * which makes percentiles accurate within a factor of {@code 1 + 2^-subBucketBits}, at the cost of as
+ * many times more memory.
+ *
+ * Like {@link StripedCounter}, counts are striped by thread and recording doesn't allocate.
+ *
+ * @author nullin
+ */
+public class Histogram {
+
+    //powers of two covered before the last bucket, i.e. values up to 2^38 - 1
+    private static final int MAX_EXPONENT = 38;
+
+    private final int subBucketBits;
+    private final int buckets;
+    //bucket counts followed by the sum of the values, per stripe
+    private final int stripeLength;
+    private final AtomicLongArray cells;
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        this(0);
+    }
+
+    /**
+     * @param subBucketBits log2 of the number of linear sub-buckets per power of two, e.g. 4 for
+     *                      percentiles accurate within 6.25%
+     */
+    public Histogram(int subBucketBits) {
+        if (subBucketBits < 0 || subBucketBits > 8) {
+            throw new IllegalArgumentException("Sub bucket bits should be between 0 and 8, got " + subBucketBits);
+        }
+        this.subBucketBits = subBucketBits;
+        buckets = ((MAX_EXPONENT + 1 - subBucketBits) << subBucketBits) + 1;
+        stripeLength = ((buckets + 1 + StripedCounter.PADDING - 1) / StripedCounter.PADDING + 1) *
+                StripedCounter.PADDING;
+        cells = new AtomicLongArray(StripedCounter.STRIPES * stripeLength);
+    }
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        int offset = StripedCounter.stripe() * stripeLength;
+        cells.getAndIncrement(offset + bucket(value));
+        cells.getAndAdd(offset + buckets, value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : getBucketCounts()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    /**
+     * @return sum of the recorded values
+     */
+    public long getSum() {
+        long sum = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            sum += cells.get(stripe * stripeLength + buckets);
+        }
+        return sum;
+    }
+
+    /**
+     * @return largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return mean of the recorded values, 0 if there are none
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the bucket the percentile falls in (capped at the max), 0 if
+     *          there are no values
+     */
+    public long getPercentile(double percentile) {
+        return getPercentile(getBucketCounts(), percentile);
+    }
+
+    /**
+     * Computes a percentile of some of the recorded values, e.g. of the values recorded in an interval
+     * as the difference between the bucket counts at its end and at its start
+     *
+     * @param bucketCounts count of values per bucket
+     * @param percentile percentile between 0 and 100
+     * @return upper bound of the bucket the percentile falls in (capped at the max), 0 if
+     *          there are no values
+     */
+    public long getPercentile(long[] bucketCounts, double percentile) {
+        long count = 0;
+        for (long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank && bucketCounts[i] > 0) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return count of values per bucket
+     */
+    public long[] getBucketCounts() {
+        long[] counts = new long[buckets];
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int i = 0; i < buckets; i++) {
+                counts[i] += cells.get(stripe * stripeLength + i);
+            }
+        }
+        return counts;
+    }
+
+    int bucket(long value) {
+        if (value < 1L << subBucketBits) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & ((1 << subBucketBits) - 1);
+        return (int) Math.min(((long) (exponent - subBucketBits + 1) << subBucketBits) + subBucket, buckets - 1);
+    }
+
+    long upperBound(int bucket) {
+        if (bucket == buckets - 1) {
+            return Long.MAX_VALUE;
+        }
+        if (bucket < 1 << subBucketBits) {
+            return bucket;
+        }
+        int exponent = (bucket >>> subBucketBits) + subBucketBits - 1;
+        int subBucket = bucket & ((1 << subBucketBits) - 1);
+        long lowerBound = ((1L << subBucketBits) + subBucket) << (exponent - subBucketBits);
+        return lowerBound + (1L << (exponent - subBucketBits)) - 1;
+    }
+}
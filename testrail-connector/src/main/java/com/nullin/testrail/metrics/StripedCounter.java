@@ -0,0 +1,62 @@
+package com.nullin.testrail.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that can be updated by many threads with little contention, similar to
+ * {@code java.util.concurrent.atomic.LongAdder} (not available on Java 7).
+ *
+ * Updates go to one of several cells, picked by the id of the updating thread. Cells are
+ * spaced a cache line apart, to avoid false sharing. Updates don't allocate. The value is
+ * the sum of all cells, which is not an atomic snapshot when updates happen concurrently.
+ *
+ * @author nullin
+ */
+public class StripedCounter {
+
+    //longs per cache line, so that cells of different stripes don't share one
+    static final int PADDING = 8;
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long value) {
+        cells.getAndAdd(stripe() * PADDING, value);
+    }
+
+    /**
+     * @return sum of all updates so far
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return stripe for the current thread
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * @return power of two at least the number of processors, up to 64
+     */
+    private static int stripes() {
+        int processors = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+        int stripes = 1;
+        while (stripes < processors) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,57 @@
+package com.nullin.testrail.metrics;
+
+import java.util.List;
+
+/**
+ * Metrics of the TestRail reporter, exposed over JMX as
+ * {@code com.nullin.testrail:type=TestRailReporter}
+ *
+ * @author nullin
+ */
+public interface TestRailMetricsMXBean {
+
+    /**
+     * @return results successfully sent to TestRail
+     */
+    long getResultsReported();
+
+    /**
+     * @return results that TestRail failed to accept
+     */
+    long getResultsFailed();
+
+    /**
+     * @return results that were not sent, e.g. because no case or run was found for them
+     */
+    long getResultsDropped();
+
+    /**
+     * @return results queued for asynchronous delivery and not yet sent
+     */
+    long getQueueDepth();
+
+    /**
+     * @return bytes sent in request bodies
+     */
+    long getBytesSent();
+
+    /**
+     * @return bytes received in response bodies
+     */
+    long getBytesReceived();
+
+    /**
+     * @return bytes saved by gzip compression of request and response bodies
+     */
+    long getBytesSaved();
+
+    /**
+     * @return time taken to load the test plan, tests and cases, 0 until loaded
+     */
+    long getInitDurationMillis();
+
+    /**
+     * @return request metrics of each end point requested so far
+     */
+    List<EndpointStats> getEndpoints();
+}
@@ -0,0 +1,194 @@
+package com.nullin.testrail.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scores how flaky test cases are, from their results streamed in chronological order.
+ *
+ * Only the last {@code window} statuses of each case are kept, in a ring buffer, along with the
+ * number of status changes (flips) and failures in the window, which are updated as results are
+ * recorded and evicted. A recency weighted flip rate (an exponentially weighted moving average of
+ * the flips, over all the results) favors cases that started flipping recently over ones that
+ * used to. Memory is proportional to the number of cases times the window, however many results
+ * are recorded.
+ *
+ * Not thread safe.
+ *
+ * @author nullin
+ */
+public class FlakinessScorer {
+
+    //TestRail's failed status
+    public static final int STATUS_FAILED = 5;
+
+    private final int window;
+    //weight of the latest result in the recency weighted flip rate
+    private final double alpha;
+
+    private final Map<Integer, Integer> caseIndexes = Maps.newHashMap();
+    private int caseCount;
+    private int[] caseIds = new int[16];
+    //last statuses of each case, window bytes per case
+    private byte[] statuses;
+    //results recorded per case
+    private long[] totals = new long[16];
+    //flips and failures within the window, per case
+    private int[] flips = new int[16];
+    private int[] failures = new int[16];
+    private double[] recentFlipRates = new double[16];
+
+    /**
+     * @param window number of latest statuses of each case to compute the flip and failure rates over
+     */
+    public FlakinessScorer(int window) {
+        this(window, 2.0 / (window + 1));
+    }
+
+    /**
+     * @param window number of latest statuses of each case to compute the flip and failure rates over
+     * @param alpha weight (0 to 1) of the latest result in the recency weighted flip rate
+     */
+    public FlakinessScorer(int window, double alpha) {
+        if (window < 2) {
+            throw new IllegalArgumentException("Window should be at least 2, got " + window);
+        }
+        this.window = window;
+        this.alpha = alpha;
+        statuses = new byte[16 * window];
+    }
+
+    /**
+     * Records the next result of a case. Results of a case must be recorded in the order they were created.
+     */
+    public void record(int caseId, int statusId) {
+        int index = getIndex(caseId);
+        int offset = index * window;
+        long total = totals[index];
+        byte status = (byte) statusId;
+        boolean flip = total > 0 && statuses[offset + (int) ((total - 1) % window)] != status;
+
+        if (total >= window) {
+            //evict the oldest status, along with the flip between it and the next one
+            byte oldest = statuses[offset + (int) (total % window)];
+            byte next = statuses[offset + (int) ((total + 1) % window)];
+            if (oldest != next) {
+                flips[index]--;
+            }
+            if (oldest == STATUS_FAILED) {
+                failures[index]--;
+            }
+        }
+
+        statuses[offset + (int) (total % window)] = status;
+        totals[index] = total + 1;
+        if (flip) {
+            flips[index]++;
+        }
+        if (statusId == STATUS_FAILED) {
+            failures[index]++;
+        }
+        if (total > 0) {
+            recentFlipRates[index] += alpha * ((flip ? 1 : 0) - recentFlipRates[index]);
+        }
+    }
+
+    private int getIndex(int caseId) {
+        Integer index = caseIndexes.get(caseId);
+        if (index != null) {
+            return index;
+        }
+        if (caseCount == caseIds.length) {
+            int capacity = caseCount * 2;
+            caseIds = Arrays.copyOf(caseIds, capacity);
+            statuses = Arrays.copyOf(statuses, capacity * window);
+            totals = Arrays.copyOf(totals, capacity);
+            flips = Arrays.copyOf(flips, capacity);
+            failures = Arrays.copyOf(failures, capacity);
+            recentFlipRates = Arrays.copyOf(recentFlipRates, capacity);
+        }
+        caseIds[caseCount] = caseId;
+        caseIndexes.put(caseId, caseCount);
+        return caseCount++;
+    }
+
+    /**
+     * @return number of cases with recorded results
+     */
+    public int getCaseCount() {
+        return caseCount;
+    }
+
+    /**
+     * Ranks the cases by their recency weighted flip rate, then by their flip rate in the window
+     *
+     * @param minFlips min number of flips in the window for a case to be ranked
+     * @param limit max number of cases to return
+     * @return scores of the flakiest cases, flakiest first
+     */
+    public List<CaseScore> rank(int minFlips, int limit) {
+        List<CaseScore> scores = Lists.newArrayList();
+        for (int i = 0; i < caseCount; i++) {
+            if (flips[i] >= minFlips) {
+                scores.add(getScore(i));
+            }
+        }
+        Collections.sort(scores, new Comparator<CaseScore>() {
+            @Override
+            public int compare(CaseScore s1, CaseScore s2) {
+                int result = Double.compare(s2.recentFlipRate, s1.recentFlipRate);
+                return result != 0 ? result : Double.compare(s2.flipRate, s1.flipRate);
+            }
+        });
+        return scores.size() > limit ? Lists.newArrayList(scores.subList(0, limit)) : scores;
+    }
+
+    private CaseScore getScore(int index) {
+        long total = totals[index];
+        int count = (int) Math.min(total, window);
+        int[] lastStatuses = new int[count];
+        long first = total - count;
+        for (int i = 0; i < count; i++) {
+            lastStatuses[i] = statuses[index * window + (int) ((first + i) % window)] & 0xff;
+        }
+        return new CaseScore(caseIds[index], total, flips[index],
+                count > 1 ? (double) flips[index] / (count - 1) : 0,
+                (double) failures[index] / count, recentFlipRates[index], lastStatuses);
+    }
+
+    /**
+     * Flakiness score of a case
+     */
+    public static class CaseScore {
+        public final int caseId;
+        //results recorded
+        public final long results;
+        //status changes within the window
+        public final int flips;
+        //flips per pair of consecutive results within the window
+        public final double flipRate;
+        //fraction of failed results within the window
+        public final double failureRate;
+        //exponentially weighted moving average of the flips, over all the results
+        public final double recentFlipRate;
+        //statuses within the window, oldest first
+        public final int[] statuses;
+
+        CaseScore(int caseId, long results, int flips, double flipRate, double failureRate, double recentFlipRate,
+                  int[] statuses) {
+            this.caseId = caseId;
+            this.results = results;
+            this.flips = flips;
+            this.flipRate = flipRate;
+            this.failureRate = failureRate;
+            this.recentFlipRate = recentFlipRate;
+            this.statuses = statuses;
+        }
+    }
+}
@@ -3,13 +3,16 @@ package com.nullin.testrail.tools;
 import com.atlassian.jira.rest.client.api.JiraRestClient;
 import com.atlassian.jira.rest.client.api.JiraRestClientFactory;
 import com.atlassian.jira.rest.client.api.domain.Issue;
-import com.atlassian.jira.rest.client.api.domain.Status;
 import com.atlassian.jira.rest.client.internal.async.AsynchronousJiraRestClientFactory;
 import com.nullin.testrail.client.TestRailClient;
 import com.nullin.testrail.dto.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
 /**
  * Find and prints out JIRA bug status for bugs referenced in the 'Reference' field of test cases
@@ -17,14 +20,24 @@ import java.util.*;
  * When using references to point to bugs that are causing test cases to fail, this tool is useful for finding
  * references to resolved or closed bugs.
  *
+ * All the references are collected first, and each distinct issue is only requested once, in batched
+ * searches (see {@link JiraIssueResolver}).
+ *
+ * Statuses can be kept in a cache file shared across runs (see {@link JiraStatusCache}), in which case only
+ * issues updated since the last run, found with a single search, and issues that aren't cached or whose
+ * status is older than {@code jiraStatusCache.ttlHours} (24 by default) are requested.
+ *
  * @author nullin
  */
 public class InvalidJiraReferenceFinder {
 
+    private static Logger logger = Logger.getLogger(InvalidJiraReferenceFinder.class.getName());
+
     /**
-     * currently takes 6 args:
+     * currently takes 6 to 8 args:
      *
-     * {testrail URL} {testrail user} {testrail passwd} {jira URL} {jira user} {jira passwd}
+     * {testrail URL} {testrail user} {testrail passwd} {jira URL} {jira user} {jira passwd} [batch size]
+     * [status cache file]
      *
      * @param args
      * @throws Exception
@@ -48,26 +61,90 @@ public class InvalidJiraReferenceFinder {
         }
 
         List<Case> cases = client.getCases(projectId, suiteId, 0, null);
+        Set<String> allRefs = new LinkedHashSet<>();
         for (Case _case : cases) {
-            String refs = _case.refs;
-            if (refs == null || refs.isEmpty()) {
-                continue;
+            allRefs.addAll(getReferences(_case));
+        }
+
+        int batchSize = args.length > 6 ? Integer.parseInt(args[6]) : JiraIssueResolver.DEFAULT_BATCH_SIZE;
+        JiraIssueResolver resolver = new JiraIssueResolver(restClient, batchSize);
+        Map<String, String> statuses = new HashMap<>();
+        if (args.length > 7) {
+            long ttlMillis = TimeUnit.HOURS.toMillis(Long.getLong("jiraStatusCache.ttlHours", 24));
+            JiraStatusCache cache = JiraStatusCache.load(new File(args[7]), ttlMillis);
+            syncCache(cache, resolver, allRefs);
+            for (String ref : allRefs) {
+                JiraStatusCache.Entry entry = cache.get(ref);
+                if (entry != null) {
+                    statuses.put(ref, entry.status);
+                }
             }
-            String[] refsArr = refs.split(",");
-            for (String ref : refsArr) {
-                ref = ref.trim();
-                checkReference(restClient, _case, ref);
+        } else {
+            for (Map.Entry<String, Issue> issue : resolver.resolve(allRefs).entrySet()) {
+                statuses.put(issue.getKey(), issue.getValue().getStatus().getName());
+            }
+        }
+
+        for (Case _case : cases) {
+            for (String ref : getReferences(_case)) {
+                printReference(_case, ref, statuses.get(ref));
             }
         }
 
         System.exit(0);
     }
 
-    private static void checkReference(JiraRestClient client, Case aCase, String ref) {
-        Issue issue = client.getIssueClient().getIssue(ref).claim();
-        Status status = issue.getStatus();
+    /**
+     * Refreshes the cached issues updated since the last sync, then resolves the references that aren't
+     * cached or are stale. As long as the cache is synced within the time to live, only the updated
+     * issues and new references are requested.
+     */
+    private static void syncCache(JiraStatusCache cache, JiraIssueResolver resolver, Collection<String> refs)
+            throws IOException {
+        long syncStart = System.currentTimeMillis();
+        long lastSync = cache.getLastSyncMillis();
+        Collection<String> toResolve = refs;
+        if (lastSync > 0 && cache.size() > 0) {
+            try {
+                Set<String> projects = cache.getProjects();
+                List<Issue> updated = resolver.findUpdatedSince(projects, lastSync);
+                for (Issue issue : updated) {
+                    cache.update(issue.getKey(), issue.getStatus().getName(), issue.getUpdateDate().getMillis());
+                }
+                //the issues that weren't updated haven't changed since the start of this sync
+                cache.verify(projects, syncStart);
+                toResolve = cache.getMissingOrStale(refs);
+                logger.info("Refreshed " + updated.size() + " updated JIRA issues, resolving " + toResolve.size() +
+                        " missing or stale references");
+            } catch (RuntimeException e) {
+                logger.warning("Failed to find updated JIRA issues, resolving all the references. " +
+                        "Ran into exception " + e.getMessage());
+            }
+        }
+        for (Map.Entry<String, Issue> issue : resolver.resolve(toResolve).entrySet()) {
+            cache.put(issue.getKey(), issue.getValue().getStatus().getName(),
+                    issue.getValue().getUpdateDate().getMillis());
+        }
+        cache.setLastSyncMillis(syncStart);
+        cache.save();
+    }
+
+    private static List<String> getReferences(Case aCase) {
+        List<String> refs = new ArrayList<>();
+        if (aCase.refs != null) {
+            for (String ref : aCase.refs.split(",")) {
+                ref = ref.trim();
+                if (!ref.isEmpty()) {
+                    refs.add(ref);
+                }
+            }
+        }
+        return refs;
+    }
+
+    private static void printReference(Case aCase, String ref, String status) {
         System.out.println(String.format("Case %8d (%75s), %d, %10s, %12s", aCase.id, aCase.automationId,
-                aCase.typeId, ref, status.getName()));
+                aCase.typeId, ref, status != null ? status : "NOT FOUND"));
     }
 
 }
\ No newline at end of file
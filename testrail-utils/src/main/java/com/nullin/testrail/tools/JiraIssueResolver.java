@@ -0,0 +1,160 @@
+package com.nullin.testrail.tools;
+
+import com.atlassian.jira.rest.client.api.JiraRestClient;
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.atlassian.jira.rest.client.api.domain.SearchResult;
+import com.atlassian.util.concurrent.Promise;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves many JIRA issue keys with as few requests as possible.
+ *
+ * Keys are deduplicated and looked up in batches, using JQL {@code key in (...)} searches that are all
+ * issued at once on the asynchronous client. JIRA rejects a whole search if one of its keys doesn't exist,
+ * so a failed search is split in halves that are searched again, until the keys that can't be searched
+ * are isolated. Those keys, keys that weren't returned (e.g. issues moved to another project) and
+ * references that don't look like issue keys are then looked up one by one, also concurrently.
+ *
+ * @author nullin
+ */
+public class JiraIssueResolver {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    //max issues returned per search when looking for updated issues
+    private static final int SEARCH_PAGE_SIZE = 500;
+    //fields needed by the client to parse an issue
+    private static final Set<String> FIELDS =
+            ImmutableSet.of("summary", "issuetype", "created", "updated", "project", "status");
+    private static final Pattern ISSUE_KEY = Pattern.compile("[A-Z][A-Z0-9_]*-[0-9]+");
+
+    private static Logger logger = Logger.getLogger(JiraIssueResolver.class.getName());
+
+    private final JiraRestClient client;
+    private final int batchSize;
+
+    public JiraIssueResolver(JiraRestClient client, int batchSize) {
+        this.client = client;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param refs issue keys, duplicates are only looked up once
+     * @return issues per key, as given. Keys that couldn't be resolved are left out.
+     */
+    public Map<String, Issue> resolve(Collection<String> refs) {
+        //refs per normalized key
+        Map<String, List<String>> keys = Maps.newLinkedHashMap();
+        for (String ref : refs) {
+            String key = ref.trim().toUpperCase(Locale.ENGLISH);
+            List<String> keyRefs = keys.get(key);
+            if (keyRefs == null) {
+                keys.put(key, keyRefs = Lists.newArrayList());
+            }
+            keyRefs.add(ref);
+        }
+
+        List<String> batchable = Lists.newArrayList();
+        List<String> unresolved = Lists.newArrayList();
+        for (String key : keys.keySet()) {
+            if (ISSUE_KEY.matcher(key).matches()) {
+                batchable.add(key);
+            } else {
+                unresolved.add(key);
+            }
+        }
+
+        Map<String, Issue> issues = Maps.newHashMap();
+        List<List<String>> batches = Lists.partition(batchable, batchSize);
+        while (!batches.isEmpty()) {
+            List<Promise<SearchResult>> searches = Lists.newArrayListWithCapacity(batches.size());
+            for (List<String> batch : batches) {
+                String jql = "key in (\"" + Joiner.on("\",\"").join(batch) + "\")";
+                searches.add(client.getSearchClient().searchJql(jql, batch.size(), 0, FIELDS));
+            }
+
+            //halves of the failed searches, searched in the next round
+            List<List<String>> retries = Lists.newArrayList();
+            for (int i = 0; i < batches.size(); i++) {
+                List<String> batch = batches.get(i);
+                try {
+                    for (Issue issue : searches.get(i).claim().getIssues()) {
+                        issues.put(issue.getKey(), issue);
+                    }
+                } catch (RuntimeException e) {
+                    if (batch.size() > 1) {
+                        logger.fine("Search for " + batch.size() + " issues failed, searching them in two halves. " +
+                                "Ran into exception " + e.getMessage());
+                        retries.add(batch.subList(0, batch.size() / 2));
+                        retries.add(batch.subList(batch.size() / 2, batch.size()));
+                    } else {
+                        unresolved.add(batch.get(0));
+                    }
+                    continue;
+                }
+                for (String key : batch) {
+                    if (!issues.containsKey(key)) {
+                        unresolved.add(key);
+                    }
+                }
+            }
+            batches = retries;
+        }
+
+        Map<String, Promise<Issue>> lookups = Maps.newLinkedHashMap();
+        for (String key : unresolved) {
+            lookups.put(key, client.getIssueClient().getIssue(key));
+        }
+        for (Map.Entry<String, Promise<Issue>> lookup : lookups.entrySet()) {
+            try {
+                issues.put(lookup.getKey(), lookup.getValue().claim());
+            } catch (RuntimeException e) {
+                logger.warning("Failed to get JIRA issue " + lookup.getKey() + ". Ran into exception " +
+                        e.getMessage());
+            }
+        }
+
+        Map<String, Issue> resolved = Maps.newHashMap();
+        for (Map.Entry<String, List<String>> key : keys.entrySet()) {
+            Issue issue = issues.get(key.getKey());
+            if (issue != null) {
+                for (String ref : key.getValue()) {
+                    resolved.put(ref, issue);
+                }
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Finds the issues of the projects updated since the given time. The time is given relative to now, in
+     * minutes and rounded down, since JQL dates are in the time zone of the JIRA user and only precise to
+     * the minute, so a few issues updated just before it may be returned as well.
+     *
+     * @param projects project keys
+     * @param sinceMillis time since when to look for updates
+     * @return issues updated since then
+     */
+    public List<Issue> findUpdatedSince(Collection<String> projects, long sinceMillis) {
+        long minutes = (System.currentTimeMillis() - sinceMillis) / 60000 + 1;
+        String jql = "project in (\"" + Joiner.on("\",\"").join(projects) + "\") AND updated >= \"-" + minutes +
+                "m\" ORDER BY updated";
+        List<Issue> issues = Lists.newArrayList();
+        while (true) {
+            SearchResult result = client.getSearchClient().searchJql(jql, SEARCH_PAGE_SIZE, issues.size(), FIELDS)
+                    .claim();
+            int size = issues.size();
+            Iterables.addAll(issues, result.getIssues());
+            if (issues.size() >= result.getTotal() || issues.size() == size) {
+                return issues;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.nullin.testrail.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * On-disk cache of the status of JIRA issues, shared across tool runs.
+ *
+ * Each issue has its status, the time it was last updated in JIRA and the time it was fetched. Entries
+ * fetched longer ago than the time to live are stale and should be fetched again. In between, issues
+ * updated since the last sync can be found with a single {@code updated >= ...} search and refreshed
+ * using {@link #update}, so that only changed issues are fetched. The other issues of the searched
+ * projects are then known to be current, see {@link #verify}, so they don't go stale either.
+ *
+ * The cache is a compact binary file, memory mapped when loaded, and rewritten (to a temporary file
+ * that is then renamed) when saved:
+ * <pre>
+ *     [int magic][long lastSync][int statusCount]([short length][utf8 status])*
+ *     [int entryCount]([short length][utf8 key][short statusIndex][long updated][long fetched])*
+ * </pre>
+ *
+ * @author nullin
+ */
+public class JiraStatusCache {
+
+    private static final int MAGIC = 0x4a534331; //"JSC1"
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static Logger logger = Logger.getLogger(JiraStatusCache.class.getName());
+
+    private final File file;
+    private final long ttlMillis;
+    //entries per upper case issue key
+    private final Map<String, Entry> entries = Maps.newHashMap();
+    //start of the last sync with JIRA, 0 if never synced
+    private long lastSyncMillis;
+
+    private JiraStatusCache(File file, long ttlMillis) {
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Loads the cache, or creates an empty one if the file doesn't exist or isn't readable
+     *
+     * @param file cache file
+     * @param ttlMillis time after which a cached status is stale
+     * @return the loaded cache
+     */
+    public static JiraStatusCache load(File file, long ttlMillis) throws IOException {
+        JiraStatusCache cache = new JiraStatusCache(file, ttlMillis);
+        if (!file.exists() || file.length() == 0) {
+            return cache;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(file + " is not a JIRA status cache");
+            }
+            cache.lastSyncMillis = buffer.getLong();
+            String[] statuses = new String[buffer.getInt()];
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = readString(buffer);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(buffer);
+                String status = statuses[buffer.getShort()];
+                cache.entries.put(key, new Entry(status, buffer.getLong(), buffer.getLong()));
+            }
+        } catch (RuntimeException e) {
+            //truncated or corrupted, e.g. by a concurrent write
+            logger.warning("Ignoring corrupted JIRA status cache " + file + ". Ran into exception " + e);
+            cache.entries.clear();
+            cache.lastSyncMillis = 0;
+        } finally {
+            raf.close();
+        }
+        return cache;
+    }
+
+    /**
+     * Writes the cache to its file
+     */
+    public void save() throws IOException {
+        Map<String, Integer> statusIndexes = Maps.newLinkedHashMap();
+        for (Entry entry : entries.values()) {
+            if (!statusIndexes.containsKey(entry.status)) {
+                statusIndexes.put(entry.status, statusIndexes.size());
+            }
+        }
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeLong(lastSyncMillis);
+            out.writeInt(statusIndexes.size());
+            for (String status : statusIndexes.keySet()) {
+                writeString(out, status);
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeShort(statusIndexes.get(entry.getValue().status));
+                out.writeLong(entry.getValue().updatedMillis);
+                out.writeLong(entry.getValue().fetchedMillis);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return the cached entry of the issue, stale or not, null if not cached
+     */
+    public Entry get(String key) {
+        return entries.get(normalize(key));
+    }
+
+    /**
+     * @param key issue key
+     * @param status current status of the issue
+     * @param updatedMillis time the issue was last updated in JIRA
+     */
+    public void put(String key, String status, long updatedMillis) {
+        entries.put(normalize(key), new Entry(status, updatedMillis, System.currentTimeMillis()));
+    }
+
+    /**
+     * @return keys that aren't cached or whose cached status is stale
+     */
+    public List<String> getMissingOrStale(Collection<String> keys) {
+        long now = System.currentTimeMillis();
+        List<String> missing = Lists.newArrayList();
+        for (String key : keys) {
+            Entry entry = get(key);
+            if (entry == null || now - entry.fetchedMillis > ttlMillis) {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return projects of the cached issues, e.g. {@code PRJ} for {@code PRJ-1}
+     */
+    public Set<String> getProjects() {
+        Set<String> projects = new TreeSet<String>();
+        for (String key : entries.keySet()) {
+            int dash = key.lastIndexOf('-');
+            if (dash > 0) {
+                projects.add(key.substring(0, dash));
+            }
+        }
+        return projects;
+    }
+
+    /**
+     * @return start of the last sync with JIRA, 0 if the cache was never synced or if the last sync is
+     *          older than the time to live, in which case all the entries are stale anyway
+     */
+    public long getLastSyncMillis() {
+        return System.currentTimeMillis() - lastSyncMillis > ttlMillis ? 0 : lastSyncMillis;
+    }
+
+    /**
+     * Updates the status of an issue if it is cached
+     */
+    public void update(String key, String status, long updatedMillis) {
+        if (entries.containsKey(normalize(key))) {
+            put(key, status, updatedMillis);
+        }
+    }
+
+    /**
+     * Marks the cached issues of the projects as current, e.g. once none of the other issues of these
+     * projects were found to be updated since the last sync
+     *
+     * @param projects project keys
+     * @param verifiedMillis time since when the issues are known to be current
+     */
+    public void verify(Collection<String> projects, long verifiedMillis) {
+        Set<String> normalized = new HashSet<String>();
+        for (String project : projects) {
+            normalized.add(normalize(project));
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            int dash = entry.getKey().lastIndexOf('-');
+            Entry cached = entry.getValue();
+            if (dash > 0 && normalized.contains(entry.getKey().substring(0, dash)) &&
+                    cached.fetchedMillis < verifiedMillis) {
+                entry.setValue(new Entry(cached.status, cached.updatedMillis, verifiedMillis));
+            }
+        }
+    }
+
+    /**
+     * @param lastSyncMillis start of a sync after which all the cached statuses, except stale ones, are current
+     */
+    public void setLastSyncMillis(long lastSyncMillis) {
+        this.lastSyncMillis = lastSyncMillis;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static String normalize(String key) {
+        return key.trim().toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Cached status of an issue
+     */
+    public static class Entry {
+        public final String status;
+        //time the issue was last updated in JIRA
+        public final long updatedMillis;
+        //time the status was fetched
+        public final long fetchedMillis;
+
+        Entry(String status, long updatedMillis, long fetchedMillis) {
+            this.status = status;
+            this.updatedMillis = updatedMillis;
+            this.fetchedMillis = fetchedMillis;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.nullin.testrail.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.nullin.testrail.ResultJournal;
+import com.nullin.testrail.client.ClientException;
+import com.nullin.testrail.client.TestRailClient;
+import com.nullin.testrail.client.request.ResultRequest;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays results recorded in a {@link ResultJournal} that were never acknowledged by TestRail, e.g. because
+ * the JVM running the tests crashed or TestRail was unavailable.
+ *
+ * Pending results are grouped per run and sent using the bulk {@code add_results_for_cases} end point. Results that
+ * are accepted are acknowledged in the same journal, so running this tool again doesn't report them twice.
+ * TestRail rejects a whole batch (400) if any of its results is invalid, so a rejected batch is split in halves
+ * that are sent again, until the invalid results are isolated.
+ *
+ * @author nullin
+ */
+public class ResultJournalReplayer {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * currently takes 4 or 5 args:
+     *
+     * {testrail URL} {testrail user} {testrail passwd} {journal file} [batch size]
+     *
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        TestRailClient client = new TestRailClient(args[0], args[1], args[2]);
+        File journalFile = new File(args[3]);
+        int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_BATCH_SIZE;
+
+        List<ResultJournal.Entry> entries = ResultJournal.readPending(journalFile);
+        System.out.println("Found " + entries.size() + " pending results in " + journalFile);
+
+        Map<Integer, List<ResultJournal.Entry>> entriesByRun = Maps.newLinkedHashMap();
+        for (ResultJournal.Entry entry : entries) {
+            List<ResultJournal.Entry> runEntries = entriesByRun.get(entry.runId);
+            if (runEntries == null) {
+                entriesByRun.put(entry.runId, runEntries = Lists.newArrayList());
+            }
+            runEntries.add(entry);
+        }
+
+        int replayed = 0;
+        int failed = 0;
+        ResultJournal journal = ResultJournal.open(journalFile, 0);
+        try {
+            for (Map.Entry<Integer, List<ResultJournal.Entry>> runEntries : entriesByRun.entrySet()) {
+                int runId = runEntries.getKey();
+                for (List<ResultJournal.Entry> batch : Lists.partition(runEntries.getValue(), batchSize)) {
+                    int batchFailed = replay(client, journal, runId, batch);
+                    replayed += batch.size() - batchFailed;
+                    failed += batchFailed;
+                }
+            }
+        } finally {
+            journal.close();
+            client.close();
+        }
+
+        System.out.println("Replayed " + replayed + " results, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Sends the batch and acknowledges its results, splitting it in halves if TestRail rejects it
+     *
+     * @return number of results that couldn't be replayed
+     */
+    private static int replay(TestRailClient client, ResultJournal journal, int runId,
+                              List<ResultJournal.Entry> batch) {
+        List<ResultRequest> results = Lists.newArrayListWithCapacity(batch.size());
+        for (ResultJournal.Entry entry : batch) {
+            results.add(entry.result);
+        }
+        try {
+            client.addResultsForCases(runId, results);
+        } catch (Exception ex) {
+            if (ex instanceof ClientException && ((ClientException) ex).getStatusCode() == 400 && batch.size() > 1) {
+                int half = batch.size() / 2;
+                return replay(client, journal, runId, batch.subList(0, half)) +
+                        replay(client, journal, runId, batch.subList(half, batch.size()));
+            }
+            System.out.println("Failed to replay " + batch.size() + " results for run " + runId + ": "
+                    + ex.getMessage());
+            return batch.size();
+        }
+        for (ResultJournal.Entry entry : batch) {
+            journal.ack(entry.sequence);
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,520 @@
+package com.nullin.testrail.tools;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.nullin.testrail.client.ClientException;
+import com.nullin.testrail.client.PagedIterator;
+import com.nullin.testrail.client.TestRailClient;
+import com.nullin.testrail.dto.Plan;
+import com.nullin.testrail.dto.PlanEntry;
+import com.nullin.testrail.dto.Result;
+import com.nullin.testrail.dto.Run;
+import com.nullin.testrail.dto.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Local copy of the results of TestRail runs, so that tools analyzing the result history only fetch
+ * the results added since they last ran.
+ *
+ * Each run has a high-water mark, the creation time of its latest stored result. Results are fetched
+ * using the {@code created_after} filter of {@code get_results_for_run}, and optionally the
+ * {@code status_id} filter. Results without a status (i.e. comments) are not stored. Once a completed
+ * run has been synced, it isn't requested again, and neither are the runs of a completed plan.
+ *
+ * The store is an append-only file of records:
+ * <pre>
+ *     [int magic][UTF status ids]                                                           (header)
+ *     [byte type][int resultId][int runId][int caseId][int testId][byte statusId][long createdOn] (type RESULT)
+ *     [byte type][int runId]                                                                (type RUN_COMPLETED)
+ *     [byte type][int planId][int runCount][int runId]...                                   (type PLAN_COMPLETED)
+ * </pre>
+ * An incomplete record at the end of the file (e.g. a write torn by a crash) is discarded when the
+ * store is opened. A store created with different status ids is discarded too.
+ *
+ * Stored results are not kept in memory, they are streamed from the file by
+ * {@link #readResults(java.util.Collection, ResultHandler)}. Only a summary of each run is: the
+ * number of its results, its high-water mark, where its results are in the file and, until it's
+ * completed, the case ids of its tests. Syncing different runs from multiple threads is safe.
+ *
+ * @author nullin
+ */
+public class ResultStore implements Closeable {
+
+    private static final int MAGIC = 0x54525331; //"TRS1"
+    private static final byte TYPE_RESULT = 1;
+    private static final byte TYPE_RUN_COMPLETED = 2;
+    private static final byte TYPE_PLAN_COMPLETED = 3;
+    private static final int RESULT_LENGTH = 1 + 4 * 4 + 1 + 8;
+    //number of results fetched per request
+    private static final int RESULTS_PAGE_SIZE = 250;
+    //number of results read from the file at a time, per run
+    private static final int READ_BATCH_SIZE = 128;
+
+    private static Logger logger = Logger.getLogger(ResultStore.class.getName());
+
+    private final File file;
+    //comma separated status ids to fetch results for, empty for all
+    private final String statusIds;
+    private final DataOutputStream out;
+
+    //all the state below is guarded by this
+    private final Map<Integer, RunState> runs = Maps.newHashMap();
+    private final Set<Integer> completedRuns = Sets.newHashSet();
+    //run ids of completed plans
+    private final Map<Integer, List<Integer>> completedPlans = Maps.newHashMap();
+    private int size;
+    //length of the file, i.e. offset of the next record
+    private long length;
+
+    private ResultStore(File file, String statusIds) throws IOException {
+        this.file = file;
+        this.statusIds = statusIds;
+        long validLength = load();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(validLength);
+        } finally {
+            raf.close();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        if (validLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeUTF(statusIds);
+            out.flush();
+            validLength = out.size();
+        }
+        length = validLength;
+    }
+
+    /**
+     * Opens the store, creating it if needed
+     *
+     * @param file file to store the results in
+     * @param statusIds comma separated ids of the statuses to store results for, null or empty for all
+     * @return the opened store
+     */
+    public static ResultStore open(File file, String statusIds) throws IOException {
+        return new ResultStore(file, statusIds == null ? "" : statusIds.replace(" ", ""));
+    }
+
+    /**
+     * Fetches and stores the results of the run added since it was last synced
+     *
+     * @param client client to fetch the results with
+     * @param run run to sync
+     * @return number of results added to the store
+     */
+    public int sync(TestRailClient client, Run run) throws IOException, ClientException {
+        long highWaterMark = -1;
+        //results don't include the case id, but the stored results or the tests of the run map tests to cases
+        Map<Integer, Integer> testCaseIds = Maps.newHashMap();
+        synchronized (this) {
+            if (completedRuns.contains(run.id)) {
+                return 0;
+            }
+            RunState stored = runs.get(run.id);
+            if (stored != null) {
+                highWaterMark = stored.highWaterMark;
+                testCaseIds.putAll(stored.testCaseIds);
+            }
+        }
+        //the run was fetched before its results, so if it was completed then, we'll get all its results
+        boolean completed = Boolean.TRUE.equals(run.isCompleted);
+
+        Map<String, String> filters = Maps.newHashMap();
+        if (highWaterMark >= 0) {
+            //results created in the same second as the latest one might not have been seen yet
+            filters.put("created_after", String.valueOf(highWaterMark - 1));
+        }
+        if (!statusIds.isEmpty()) {
+            filters.put("status_id", statusIds);
+        }
+        List<Result> results = Lists.newArrayList();
+        PagedIterator<Result> iterator = client.iterateResultsForRun(run.id, filters, RESULTS_PAGE_SIZE);
+        try {
+            while (iterator.hasNext()) {
+                Result result = iterator.next();
+                if (result.statusId != null) {
+                    results.add(result);
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+
+        for (Result result : results) {
+            if (!testCaseIds.containsKey(result.testId)) {
+                for (Test test : client.getTests(run.id)) {
+                    testCaseIds.put(test.id, test.caseId);
+                }
+                break;
+            }
+        }
+
+        //results are returned newest first
+        Collections.sort(results, new Comparator<Result>() {
+            @Override
+            public int compare(Result r1, Result r2) {
+                long t1 = r1.createdOn != null ? r1.createdOn : 0;
+                long t2 = r2.createdOn != null ? r2.createdOn : 0;
+                return t1 != t2 ? (t1 < t2 ? -1 : 1) : (r1.id < r2.id ? -1 : (r1.id == r2.id ? 0 : 1));
+            }
+        });
+
+        synchronized (this) {
+            RunState current = runs.get(run.id);
+            //pages can overlap if results are added while they are fetched
+            Set<Integer> seen = current != null ? current.getResultIdsSince(highWaterMark - 1) :
+                    Sets.<Integer>newHashSet();
+            int added = 0;
+            for (Result result : results) {
+                if (!seen.add(result.id)) {
+                    continue;
+                }
+                Integer caseId = testCaseIds.get(result.testId);
+                long createdOn = result.createdOn != null ? result.createdOn : 0;
+                out.writeByte(TYPE_RESULT);
+                out.writeInt(result.id);
+                out.writeInt(run.id);
+                out.writeInt(caseId != null ? caseId : 0);
+                out.writeInt(result.testId);
+                out.writeByte(result.statusId);
+                out.writeLong(createdOn);
+                add(result.id, run.id, caseId != null ? caseId : 0, result.testId, createdOn);
+                added++;
+            }
+            if (completed) {
+                out.writeByte(TYPE_RUN_COMPLETED);
+                out.writeInt(run.id);
+                length += 1 + 4;
+                runCompleted(run.id);
+            }
+            out.flush();
+            return added;
+        }
+    }
+
+    /**
+     * Records that the plan is completed, so that its runs can be synced without fetching the plan again.
+     * Plans that aren't completed yet are ignored.
+     *
+     * @param plan plan including its entries
+     */
+    public synchronized void planCompleted(Plan plan) throws IOException {
+        if (!Boolean.TRUE.equals(plan.isCompleted) || completedPlans.containsKey(plan.id)) {
+            return;
+        }
+        List<Integer> runIds = Lists.newArrayList();
+        if (plan.entries != null) {
+            for (PlanEntry entry : plan.entries) {
+                for (Run run : entry.runs) {
+                    runIds.add(run.id);
+                }
+            }
+        }
+        out.writeByte(TYPE_PLAN_COMPLETED);
+        out.writeInt(plan.id);
+        out.writeInt(runIds.size());
+        for (int runId : runIds) {
+            out.writeInt(runId);
+        }
+        out.flush();
+        length += 1 + 4 + 4 + 4 * runIds.size();
+        completedPlans.put(plan.id, runIds);
+    }
+
+    /**
+     * @return ids of the runs of the plan, if it was recorded as completed, null otherwise
+     */
+    public synchronized List<Integer> getCompletedPlanRuns(int planId) {
+        List<Integer> runIds = completedPlans.get(planId);
+        return runIds != null ? Collections.unmodifiableList(runIds) : null;
+    }
+
+    /**
+     * @return true if the run is completed and all its results are stored
+     */
+    public synchronized boolean isCompleted(int runId) {
+        return completedRuns.contains(runId);
+    }
+
+    /**
+     * @return number of results of the run stored
+     */
+    public synchronized int getResultCount(int runId) {
+        RunState state = runs.get(runId);
+        return state != null ? state.size : 0;
+    }
+
+    /**
+     * @return number of results stored across all runs
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Reads the stored results of the runs from the file, merging the results of all the runs in the
+     * order they were created. Only a few results of each run are held in memory at a time.
+     *
+     * @param runIds ids of the runs to read the results of
+     * @param handler handler the results are passed to
+     */
+    public void readResults(Collection<Integer> runIds, ResultHandler handler) throws IOException {
+        PriorityQueue<RunCursor> cursors = new PriorityQueue<RunCursor>(Math.max(1, runIds.size()),
+                new Comparator<RunCursor>() {
+                    @Override
+                    public int compare(RunCursor c1, RunCursor c2) {
+                        int result = Long.compare(c1.createdOn, c2.createdOn);
+                        return result != 0 ? result : Integer.compare(c1.resultId, c2.resultId);
+                    }
+                });
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            for (int runId : Sets.newLinkedHashSet(runIds)) {
+                List<long[]> segments;
+                synchronized (this) {
+                    RunState state = runs.get(runId);
+                    if (state == null) {
+                        continue;
+                    }
+                    segments = Lists.newArrayList(state.segments);
+                }
+                RunCursor cursor = new RunCursor(channel, segments);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            while (!cursors.isEmpty()) {
+                RunCursor cursor = cursors.poll();
+                handler.result(cursor.runId, cursor.resultId, cursor.caseId, cursor.testId, cursor.statusId,
+                        cursor.createdOn);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void add(int resultId, int runId, int caseId, int testId, long createdOn) {
+        RunState state = runs.get(runId);
+        if (state == null) {
+            runs.put(runId, state = new RunState());
+        }
+        state.add(length, resultId, caseId, testId, createdOn);
+        length += RESULT_LENGTH;
+        size++;
+    }
+
+    private void runCompleted(int runId) {
+        completedRuns.add(runId);
+        RunState state = runs.get(runId);
+        if (state != null) {
+            //completed runs aren't synced again
+            state.testCaseIds = Collections.emptyMap();
+            state.recentResultIds = Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Loads the summary of the stored records
+     *
+     * @return length of the valid part of the file, 0 if it needs to be rewritten from scratch
+     */
+    private long load() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(file + " is not a TestRail result store");
+                }
+                String storedStatusIds = in.readUTF();
+                if (!storedStatusIds.equals(statusIds)) {
+                    logger.warning("Discarding results in " + file + " that were stored for status ids '" +
+                            storedStatusIds + "' instead of '" + statusIds + "'");
+                    return 0;
+                }
+                length = 4 + 2 + storedStatusIds.getBytes("UTF-8").length;
+            } catch (EOFException ex) {
+                return 0;
+            }
+
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    if (type == TYPE_RESULT) {
+                        int resultId = in.readInt();
+                        int runId = in.readInt();
+                        int caseId = in.readInt();
+                        int testId = in.readInt();
+                        in.readUnsignedByte();
+                        add(resultId, runId, caseId, testId, in.readLong());
+                    } else if (type == TYPE_RUN_COMPLETED) {
+                        runCompleted(in.readInt());
+                        length += 1 + 4;
+                    } else if (type == TYPE_PLAN_COMPLETED) {
+                        int planId = in.readInt();
+                        int runCount = in.readInt();
+                        List<Integer> runIds = Lists.newArrayListWithCapacity(runCount);
+                        for (int i = 0; i < runCount; i++) {
+                            runIds.add(in.readInt());
+                        }
+                        completedPlans.put(planId, runIds);
+                        length += 1 + 4 + 4 + 4 * runCount;
+                    } else {
+                        logger.warning("Ignoring unknown record type " + type + " at offset " + length +
+                                " of " + file);
+                        break;
+                    }
+                }
+            } catch (EOFException ex) {
+                //end of the store, possibly with an incomplete record
+            }
+            return length;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Receives the stored results
+     */
+    public interface ResultHandler {
+        /**
+         * @param caseId case id of the result, 0 if it isn't known
+         * @param createdOn creation time of the result, in seconds since the epoch
+         */
+        void result(int runId, int resultId, int caseId, int testId, int statusId, long createdOn) throws IOException;
+    }
+
+    /**
+     * What is kept in memory about the stored results of a run
+     */
+    private static class RunState {
+        int size;
+        long highWaterMark = -1;
+        //offset and number of results of each contiguous group of results of the run in the file
+        final List<long[]> segments = Lists.newArrayList();
+        //only until the run is completed
+        Map<Integer, Integer> testCaseIds = Maps.newHashMap();
+        //ids and creation times of the latest results, to skip them if they are fetched again
+        Map<Integer, Long> recentResultIds = Maps.newHashMap();
+
+        void add(long offset, int resultId, int caseId, int testId, long created) {
+            long[] last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && last[0] + last[1] * RESULT_LENGTH == offset) {
+                last[1]++;
+            } else {
+                segments.add(new long[] {offset, 1});
+            }
+            if (caseId != 0) {
+                testCaseIds.put(testId, caseId);
+            }
+            if (created > highWaterMark) {
+                highWaterMark = created;
+                Iterator<Long> times = recentResultIds.values().iterator();
+                while (times.hasNext()) {
+                    if (times.next() < highWaterMark - 1) {
+                        times.remove();
+                    }
+                }
+            }
+            if (created >= highWaterMark - 1) {
+                recentResultIds.put(resultId, created);
+            }
+            size++;
+        }
+
+        /**
+         * @return ids of the results created at or after the given time, which should be at least
+         *          one second before the high-water mark
+         */
+        Set<Integer> getResultIdsSince(long time) {
+            Set<Integer> ids = Sets.newHashSet();
+            for (Map.Entry<Integer, Long> entry : recentResultIds.entrySet()) {
+                if (entry.getValue() >= time) {
+                    ids.add(entry.getKey());
+                }
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * Reads the results of a run from the file, a batch at a time
+     */
+    private static class RunCursor {
+        final FileChannel channel;
+        final List<long[]> segments;
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BATCH_SIZE * RESULT_LENGTH);
+        int segment;
+        //results of the current segment already read
+        long read;
+        //current result
+        int resultId;
+        int runId;
+        int caseId;
+        int testId;
+        int statusId;
+        long createdOn;
+
+        RunCursor(FileChannel channel, List<long[]> segments) {
+            this.channel = channel;
+            this.segments = segments;
+            buffer.flip();
+        }
+
+        /**
+         * Moves to the next result
+         *
+         * @return false if there are no more results
+         */
+        boolean next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                while (segment < segments.size() && read == segments.get(segment)[1]) {
+                    segment++;
+                    read = 0;
+                }
+                if (segment == segments.size()) {
+                    return false;
+                }
+                long[] current = segments.get(segment);
+                int count = (int) Math.min(READ_BATCH_SIZE, current[1] - read);
+                long position = current[0] + read * RESULT_LENGTH;
+                buffer.clear();
+                buffer.limit(count * RESULT_LENGTH);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Result store is shorter than expected");
+                    }
+                }
+                buffer.flip();
+                read += count;
+            }
+            buffer.get(); //type
+            resultId = buffer.getInt();
+            runId = buffer.getInt();
+            caseId = buffer.getInt();
+            testId = buffer.getInt();
+            statusId = buffer.get() & 0xff;
+            createdOn = buffer.getLong();
+            return true;
+        }
+    }
+}
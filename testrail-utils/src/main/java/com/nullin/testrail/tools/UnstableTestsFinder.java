@@ -1,15 +1,17 @@
 package com.nullin.testrail.tools;
 
-import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.nullin.testrail.client.ClientException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.nullin.testrail.client.TestRailClient;
 import com.nullin.testrail.dto.*;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Attempts to find unstable tests by looking at past test results.
@@ -17,20 +19,49 @@ import java.util.*;
  * Milestone name is used to find associated TestPlans and then we get all test results for each test case (based on
  * automation id) and finally check if we see unstable results for the tests.
  *
+ * Results are kept in a {@link ResultStore}, so that only results added since the last invocation are fetched.
+ * Plans and runs are fetched concurrently. The results of all the runs are then streamed from the store, in
+ * chronological order, through a {@link FlakinessScorer}, and the flakiest cases are reported. Memory doesn't grow
+ * with the number of stored results, only with the number of cases and runs.
+ *
  * @author nullin
  */
 public class UnstableTestsFinder {
 
+    //number of concurrent requests, matches the default max concurrent requests of the client
+    private static final int DEFAULT_THREADS = 10;
+    //number of latest results of each case that are scored
+    private static final int DEFAULT_WINDOW = 20;
+    //cases with at least this many status changes within the window are reported
+    private static final int DEFAULT_MIN_FLIPS = 3;
+    //max number of cases reported
+    private static final int DEFAULT_TOP = 100;
+
     /**
-     * currently takes 3 args:
+     * currently takes 3 to 5 args:
+     *
+     * {testrail URL} {testrail user} {testrail passwd} [result store file] [comma separated status ids]
      *
-     * {testrail URL} {testrail user} {testrail passwd}
+     * Without a result store file, all the results are fetched again on every invocation. The number of
+     * concurrent requests can be set with the {@code unstableTests.threads} system property, and the
+     * scoring with the {@code unstableTests.window}, {@code unstableTests.minFlips} and
+     * {@code unstableTests.top} system properties.
      *
      * @param args
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
-        TestRailClient client = new TestRailClient(args[0], args[1], args[2]);
+        final TestRailClient client = new TestRailClient(args[0], args[1], args[2]);
+        File storeFile;
+        if (args.length > 3) {
+            storeFile = new File(args[3]);
+        } else {
+            storeFile = File.createTempFile("testrail-results", ".store");
+            storeFile.deleteOnExit();
+        }
+        final ResultStore store = ResultStore.open(storeFile, args.length > 4 ? args[4] : null);
+        ExecutorService executor = Executors.newFixedThreadPool(Integer.getInteger("unstableTests.threads",
+                DEFAULT_THREADS), new ThreadFactoryBuilder().setDaemon(true).setNameFormat("unstable-tests-%d").build());
 
         int projectId = 1;
         String milestoneName = "master"; //TODO: make configurable
@@ -49,83 +80,111 @@ public class UnstableTestsFinder {
         filters.put("limit", "5"); //TODO: make configurable
         List<Plan> plans = client.getPlans(projectId, filters);
 
-        Map<Integer, String> automationIdMap = Maps.newHashMap();
-        Map<Integer, List<Result>> resultMap = Maps.newLinkedHashMap();
-
-        for (Plan plan : plans) {
-            System.out.println("Plan: " + plan.name);
-            List<PlanEntry> planEntries = client.getPlan(plan.id).entries;
-            for (PlanEntry planEntry : planEntries) {
-                for (Run run : planEntry.runs) {
-                    List<Result> results = getResults(client, run.id);
-                    List<Test> tests = client.getTests(run.id);
-                    System.out.println("Run: " + run.name + ", Tests Size: " + tests.size() + ", Results Size: " + results.size());
-                    Map<Integer, List<Result>> testResultMap = new LinkedHashMap<>();
-
-                    for (Result result : results) {
-                        if (result.statusId != null) {
-                            if (testResultMap.get(result.testId) != null) {
-                                testResultMap.get(result.testId).add(result);
-                            } else {
-                                testResultMap.put(result.testId, Lists.newArrayList(result));
-                            }
-                        }
-                    }
-                    for (Test test : tests) {
-                        if (!automationIdMap.containsKey(test.caseId)) {
-                            automationIdMap.put(test.caseId, test.automationId);
+        List<Integer> allRunIds = Lists.newArrayList();
+        try {
+            //fetch the plans that haven't been synced yet
+            Map<Plan, Future<Plan>> fullPlans = Maps.newLinkedHashMap();
+            for (final Plan plan : plans) {
+                if (store.getCompletedPlanRuns(plan.id) == null) {
+                    fullPlans.put(plan, executor.submit(new Callable<Plan>() {
+                        @Override
+                        public Plan call() throws Exception {
+                            return client.getPlan(plan.id);
                         }
+                    }));
+                }
+            }
 
-                        List<Result> testResults = testResultMap.get(test.id);
-                        if (testResults != null) {
-                            if (resultMap.get(test.caseId) != null) {
-                                resultMap.get(test.caseId).addAll(testResults);
-                            } else {
-                                resultMap.put(test.caseId, testResults);
+            //then sync all their runs
+            Map<Run, Future<Integer>> syncs = Maps.newLinkedHashMap();
+            for (Future<Plan> fullPlan : fullPlans.values()) {
+                for (PlanEntry planEntry : get(fullPlan).entries) {
+                    for (final Run run : planEntry.runs) {
+                        syncs.put(run, executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() throws Exception {
+                                return store.sync(client, run);
                             }
-                        }
+                        }));
                     }
                 }
             }
-        }
 
-        for (Map.Entry<Integer, List<Result>> entry : resultMap.entrySet()) {
-            List<Result> results = entry.getValue();
-            List<Integer> statuses = Lists.transform(results, new Function<Result, Integer>() {
-                @Override
-                public Integer apply(Result result) {
-                    return result.statusId;
+            for (Plan plan : plans) {
+                List<Integer> runIds = store.getCompletedPlanRuns(plan.id);
+                if (runIds != null) {
+                    System.out.println("Plan: " + plan.name + " (already synced)");
+                } else {
+                    System.out.println("Plan: " + plan.name);
+                    runIds = Lists.newArrayList();
+                    Plan fullPlan = get(fullPlans.get(plan));
+                    for (PlanEntry planEntry : fullPlan.entries) {
+                        for (Run run : planEntry.runs) {
+                            int added = get(syncs.get(run));
+                            System.out.println("Run: " + run.name + ", New Results: " + added + ", Results Size: "
+                                    + store.getResultCount(run.id));
+                            runIds.add(run.id);
+                        }
+                    }
+                    store.planCompleted(fullPlan);
                 }
-            });
-            boolean isUnstable = check(statuses);
-            if (isUnstable) {
-                System.out.println("Case " + entry.getKey() + " (" + automationIdMap.get(entry.getKey()) + "): " + statuses);
+
+                allRunIds.addAll(runIds);
             }
+        } finally {
+            store.close();
         }
 
-    }
+        FlakinessScorer scorer = new FlakinessScorer(Integer.getInteger("unstableTests.window", DEFAULT_WINDOW));
+        score(store, allRunIds, scorer);
+        List<FlakinessScorer.CaseScore> scores = scorer.rank(
+                Integer.getInteger("unstableTests.minFlips", DEFAULT_MIN_FLIPS),
+                Integer.getInteger("unstableTests.top", DEFAULT_TOP));
+        System.out.println("Scored " + scorer.getCaseCount() + " cases, " + scores.size() + " unstable");
 
-    private static List<Result> getResults(TestRailClient client, Integer id) throws IOException, ClientException {
-        Map<String, String> filters = Maps.newHashMap();
-        List<Result> results = Lists.newArrayList();
-        List<Result> tmp;
-        int offset = 250;
-        while (!(tmp = client.getResultsForRun(id, filters)).isEmpty()) {
-            results.addAll(tmp);
-            filters.put("offset", String.valueOf(offset));
-            offset += 250;
+        List<Future<Case>> unstableCases = Lists.newArrayList();
+        for (final FlakinessScorer.CaseScore score : scores) {
+            unstableCases.add(executor.submit(new Callable<Case>() {
+                @Override
+                public Case call() throws Exception {
+                    return client.getCase(score.caseId);
+                }
+            }));
         }
-        return results;
+        for (int i = 0; i < scores.size(); i++) {
+            FlakinessScorer.CaseScore score = scores.get(i);
+            System.out.println(String.format("Case %d (%s): recent flip rate %.2f, flips %d (%.0f%%), " +
+                    "failures %.0f%%, results %d: %s", score.caseId, get(unstableCases.get(i)).automationId, score.recentFlipRate,
+                    score.flips, score.flipRate * 100, score.failureRate * 100, score.results,
+                    Arrays.toString(score.statuses)));
+        }
+        executor.shutdown();
+        client.close();
     }
 
-    private static boolean check(List<Integer> statuses) {
-        int count = 0;
-        for (int i = 0 ; i < statuses.size() - 1; i++) {
-            if (!statuses.get(i).equals(statuses.get(i + 1))) {
-                count++;
+    /**
+     * Records the stored results of the runs in the scorer, merging the results of all the runs in
+     * the order they were created
+     */
+    private static void score(ResultStore store, List<Integer> runIds, final FlakinessScorer scorer)
+            throws IOException {
+        store.readResults(runIds, new ResultStore.ResultHandler() {
+            @Override
+            public void result(int runId, int resultId, int caseId, int testId, int statusId, long createdOn) {
+                if (caseId != 0) {
+                    scorer.record(caseId, statusId);
+                }
             }
+        });
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), Exception.class);
+            throw e;
         }
-        return count >= 3;
     }
 
 }
\ No newline at end of file
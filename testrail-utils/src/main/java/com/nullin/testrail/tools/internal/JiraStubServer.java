@@ -0,0 +1,388 @@
+package com.nullin.testrail.tools.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stub of the JIRA REST end points used by the tools, {@code /rest/api/2/issue/{key}} and
+ * {@code /rest/api/2/search} (GET and POST), to exercise them without a JIRA instance.
+ *
+ * Issues only have the fields needed by the JIRA REST client to parse them, i.e. summary, issue type,
+ * project, status, created and updated. Searches support JQL made of {@code key in (...)},
+ * {@code project in (...)} and {@code updated >= "yyyy/MM/dd HH:mm"} (or relative, e.g. {@code "-5m"})
+ * clauses joined by {@code AND}, optionally followed by {@code ORDER BY}, which is ignored. As in JIRA,
+ * a search for a key that doesn't exist fails with status 400. Authentication is not checked.
+ *
+ * @author nullin
+ */
+public class JiraStubServer {
+
+    private static final String API_PREFIX = "/rest/api/2/";
+    private static final Pattern KEY_IN = Pattern.compile("(?i)key\\s+in\\s*\\(([^)]*)\\)");
+    private static final Pattern PROJECT_IN = Pattern.compile("(?i)project\\s+in\\s*\\(([^)]*)\\)");
+    private static final Pattern RELATIVE_DATE = Pattern.compile("-(\\d+)([wdhm])");
+    private static final Pattern UPDATED_SINCE = Pattern.compile("(?i)updated\\s*>=\\s*(\"[^\"]*\"|'[^']*'|\\S+)");
+
+    private Logger logger = Logger.getLogger(JiraStubServer.class.getName());
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong searchCount = new AtomicLong();
+
+    //all the state below is guarded by this lock
+    private final Object lock = new Object();
+    private int nextId = 10000;
+    private final Map<String, Map<String, Object>> issues = new LinkedHashMap<String, Map<String, Object>>();
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     */
+    public JiraStubServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(API_PREFIX, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                JiraStubServer.this.handle(exchange);
+            }
+        });
+        executor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("jira-stub-%d").build());
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts a stub server with a number of issues, {@code STUB-1} to {@code STUB-n}, alternately
+     * open and resolved
+     *
+     * Usage: JiraStubServer port issues
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8081;
+        int issueCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        JiraStubServer stub = new JiraStubServer(port);
+        for (int i = 1; i <= issueCount; i++) {
+            stub.addIssue("STUB-" + i, i % 2 == 0 ? "Resolved" : "Open");
+        }
+        stub.start();
+        System.out.println("JIRA stub listening at " + stub.getUrl());
+    }
+
+    public void start() {
+        server.start();
+        logger.info("Started JIRA stub at " + getUrl());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return URL to create a JIRA REST client with
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return number of requests received so far
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return number of searches received so far
+     */
+    public long getSearchCount() {
+        return searchCount.get();
+    }
+
+    /**
+     * Adds an issue, or updates the status of an existing one. The issue is updated in either case.
+     *
+     * @param key issue key, e.g. {@code PRJ-1}
+     * @param status name of its status
+     */
+    public void addIssue(String key, String status) {
+        String now = formatDate(new Date());
+        synchronized (lock) {
+            Map<String, Object> issue = issues.get(key);
+            if (issue == null) {
+                issue = createIssue(nextId++, key, now);
+                issues.put(key, issue);
+            }
+            Map<String, Object> fields = (Map<String, Object>) issue.get("fields");
+            Map<String, Object> statusField = new LinkedHashMap<String, Object>();
+            statusField.put("self", getUrl() + API_PREFIX + "status/1");
+            statusField.put("id", "1");
+            statusField.put("name", status);
+            statusField.put("description", "");
+            statusField.put("iconUrl", getUrl() + "/images/icons/status.png");
+            fields.put("status", statusField);
+            fields.put("updated", now);
+        }
+    }
+
+    private Map<String, Object> createIssue(int id, String key, String now) {
+        String project = key.substring(0, key.lastIndexOf('-'));
+        Map<String, Object> issueType = new LinkedHashMap<String, Object>();
+        issueType.put("self", getUrl() + API_PREFIX + "issuetype/1");
+        issueType.put("id", "1");
+        issueType.put("name", "Bug");
+        issueType.put("subtask", false);
+        issueType.put("description", "");
+        issueType.put("iconUrl", getUrl() + "/images/icons/bug.png");
+
+        Map<String, Object> projectField = new LinkedHashMap<String, Object>();
+        projectField.put("self", getUrl() + API_PREFIX + "project/" + project);
+        projectField.put("id", "1");
+        projectField.put("key", project);
+        projectField.put("name", project);
+
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        fields.put("summary", "Issue " + key);
+        fields.put("issuetype", issueType);
+        fields.put("project", projectField);
+        fields.put("created", now);
+
+        Map<String, Object> issue = new LinkedHashMap<String, Object>();
+        issue.put("expand", "");
+        issue.put("id", String.valueOf(id));
+        issue.put("self", getUrl() + API_PREFIX + "issue/" + id);
+        issue.put("key", key);
+        issue.put("fields", fields);
+        return issue;
+    }
+
+    /*
+    Request handling
+     */
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            String path = exchange.getRequestURI().getPath().substring(API_PREFIX.length());
+            Object response;
+            if (path.startsWith("issue/")) {
+                response = getIssue(URLDecoder.decode(path.substring("issue/".length()), "UTF-8"));
+            } else if (path.equals("search")) {
+                searchCount.incrementAndGet();
+                response = search(getSearchParams(exchange));
+            } else {
+                throw new StubException(404, "Unknown API " + path);
+            }
+            send(exchange, 200, mapper.writeValueAsBytes(response));
+        } catch (StubException e) {
+            send(exchange, e.status, error(e.getMessage()));
+        } catch (Exception e) {
+            logger.severe("Failed to handle " + exchange.getRequestURI() + ". Ran into exception " + e);
+            send(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Map<String, Object> getIssue(String key) {
+        synchronized (lock) {
+            Map<String, Object> issue = issues.get(key.toUpperCase(Locale.ENGLISH));
+            if (issue == null) {
+                throw new StubException(404, "Issue Does Not Exist");
+            }
+            return issue;
+        }
+    }
+
+    private Map<String, Object> getSearchParams(HttpExchange exchange) throws IOException {
+        Map<String, Object> params = new HashMap<String, Object>();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            InputStream is = exchange.getRequestBody();
+            try {
+                params.putAll(mapper.readValue(ByteStreams.toByteArray(is), Map.class));
+            } finally {
+                is.close();
+            }
+        } else if (exchange.getRequestURI().getRawQuery() != null) {
+            for (String param : exchange.getRequestURI().getRawQuery().split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    private Map<String, Object> search(Map<String, Object> params) {
+        String jql = params.containsKey("jql") ? String.valueOf(params.get("jql")) : "";
+        int startAt = params.containsKey("startAt") ? Integer.parseInt(String.valueOf(params.get("startAt"))) : 0;
+        int maxResults = params.containsKey("maxResults") ?
+                Integer.parseInt(String.valueOf(params.get("maxResults"))) : 50;
+
+        String query = jql.replaceAll("(?i)\\s+order\\s+by\\s+.*$", "").trim();
+        List<String> keys = null;
+        List<String> projects = null;
+        String updatedSince = null;
+        for (String clause : query.isEmpty() ? new String[0] : query.split("(?i)\\s+and\\s+")) {
+            Matcher keyIn = KEY_IN.matcher(clause.trim());
+            Matcher projectIn = PROJECT_IN.matcher(clause.trim());
+            Matcher updated = UPDATED_SINCE.matcher(clause.trim());
+            if (keyIn.matches()) {
+                keys = new ArrayList<String>();
+                for (String key : keyIn.group(1).split(",")) {
+                    keys.add(unquote(key.trim()).toUpperCase(Locale.ENGLISH));
+                }
+            } else if (projectIn.matches()) {
+                projects = new ArrayList<String>();
+                for (String project : projectIn.group(1).split(",")) {
+                    projects.add(unquote(project.trim()).toUpperCase(Locale.ENGLISH));
+                }
+            } else if (updated.matches()) {
+                updatedSince = unquote(updated.group(1));
+            } else {
+                throw new StubException(400, "Unsupported JQL clause '" + clause + "'");
+            }
+        }
+
+        List<Map<String, Object>> matches = new ArrayList<Map<String, Object>>();
+        synchronized (lock) {
+            if (keys != null) {
+                for (String key : keys) {
+                    if (!issues.containsKey(key)) {
+                        throw new StubException(400, "An issue with key '" + key + "' does not exist for field 'key'.");
+                    }
+                }
+            }
+            Date since = updatedSince != null ? parseJqlDate(updatedSince) : null;
+            for (Map<String, Object> issue : issues.values()) {
+                if (keys != null && !keys.contains(issue.get("key"))) {
+                    continue;
+                }
+                String key = (String) issue.get("key");
+                if (projects != null && !projects.contains(key.substring(0, key.lastIndexOf('-')))) {
+                    continue;
+                }
+                if (since != null && parseDate((String) ((Map<String, Object>) issue.get("fields")).get("updated"))
+                        .before(since)) {
+                    continue;
+                }
+                matches.add(issue);
+            }
+        }
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("expand", "schema,names");
+        result.put("startAt", startAt);
+        result.put("maxResults", maxResults);
+        result.put("total", matches.size());
+        result.put("issues", matches.subList(Math.min(startAt, matches.size()),
+                Math.min(startAt + maxResults, matches.size())));
+        return result;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") ||
+                value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static String formatDate(Date date) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static Date parseDate(String value) {
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parse(value);
+        } catch (ParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parses a JQL date, either relative to now (e.g. {@code -5m}), in milliseconds since the epoch or
+     * formatted as {@code yyyy/MM/dd HH:mm} or {@code yyyy-MM-dd HH:mm} in the stub's time zone, as JIRA
+     * does with the user's time zone
+     */
+    private static Date parseJqlDate(String value) {
+        Matcher relative = RELATIVE_DATE.matcher(value);
+        if (relative.matches()) {
+            long unitMillis = "w".equals(relative.group(2)) ? 604800000L : "d".equals(relative.group(2)) ? 86400000L :
+                    "h".equals(relative.group(2)) ? 3600000L : 60000L;
+            return new Date(System.currentTimeMillis() - Long.parseLong(relative.group(1)) * unitMillis);
+        }
+        if (value.matches("-?\\d+")) {
+            return new Date(Long.parseLong(value));
+        }
+        try {
+            return new SimpleDateFormat("yyyy/MM/dd HH:mm").parse(value.replace('-', '/'));
+        } catch (ParseException e) {
+            throw new StubException(400, "Date value '" + value + "' for field 'updated' is invalid.");
+        }
+    }
+
+    private byte[] error(String message) throws IOException {
+        Map<String, Object> error = new LinkedHashMap<String, Object>();
+        error.put("errorMessages", Collections.singletonList(message));
+        error.put("errors", Collections.emptyMap());
+        return mapper.writeValueAsBytes(error);
+    }
+
+    private void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        if (body.length > 0) {
+            OutputStream os = exchange.getResponseBody();
+            try {
+                os.write(body);
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * Invalid request, reported with the given status and JIRA's error format
+     */
+    private static class StubException extends RuntimeException {
+
+        private final int status;
+
+        StubException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
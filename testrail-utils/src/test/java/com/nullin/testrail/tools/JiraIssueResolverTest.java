@@ -0,0 +1,90 @@
+package com.nullin.testrail.tools;
+
+import com.atlassian.jira.rest.client.api.JiraRestClient;
+import com.atlassian.jira.rest.client.api.domain.Issue;
+import com.atlassian.jira.rest.client.internal.async.AsynchronousJiraRestClientFactory;
+import com.nullin.testrail.tools.internal.JiraStubServer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Checks how many requests {@link JiraIssueResolver} sends to resolve references, using {@link JiraStubServer}
+ *
+ * @author nullin
+ */
+public class JiraIssueResolverTest {
+
+    private static final int ISSUE_COUNT = 250;
+
+    private JiraStubServer stub;
+    private JiraRestClient client;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        stub = new JiraStubServer(0);
+        for (int i = 1; i <= ISSUE_COUNT; i++) {
+            stub.addIssue("PRJ-" + i, i % 2 == 0 ? "Resolved" : "Open");
+        }
+        stub.start();
+        client = new AsynchronousJiraRestClientFactory().createWithBasicHttpAuthentication(new URI(stub.getUrl()),
+                "user", "password");
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        client.close();
+        stub.stop();
+    }
+
+    @Test
+    public void testDuplicatesAreResolvedOnce() {
+        Map<String, Issue> issues = new JiraIssueResolver(client, 100)
+                .resolve(Arrays.asList("PRJ-1", "prj-1", " PRJ-1", "PRJ-2", "PRJ-2"));
+
+        Assert.assertEquals(issues.size(), 4);
+        Assert.assertEquals(issues.get("prj-1").getKey(), "PRJ-1");
+        Assert.assertEquals(issues.get(" PRJ-1").getKey(), "PRJ-1");
+        Assert.assertEquals(issues.get("PRJ-2").getStatus().getName(), "Resolved");
+        Assert.assertEquals(stub.getSearchCount(), 1);
+        Assert.assertEquals(stub.getRequestCount(), 1);
+    }
+
+    @Test
+    public void testKeysAreSearchedInBatches() {
+        List<String> refs = new ArrayList<>();
+        for (int i = 1; i <= ISSUE_COUNT; i++) {
+            refs.add("PRJ-" + i);
+        }
+
+        Map<String, Issue> issues = new JiraIssueResolver(client, 100).resolve(refs);
+
+        Assert.assertEquals(issues.size(), ISSUE_COUNT);
+        Assert.assertEquals(issues.get("PRJ-250").getStatus().getName(), "Resolved");
+        Assert.assertEquals(stub.getSearchCount(), 3);
+        Assert.assertEquals(stub.getRequestCount(), 3);
+    }
+
+    @Test
+    public void testMissingKeysAreIsolated() {
+        List<String> refs = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            refs.add("PRJ-" + i);
+        }
+        refs.add("PRJ-9999"); //doesn't exist, so searches including it fail
+        refs.add("BUG1234"); //not an issue key, so it's only looked up
+
+        Map<String, Issue> issues = new JiraIssueResolver(client, 128).resolve(refs);
+
+        Assert.assertEquals(issues.size(), 100);
+        Assert.assertFalse(issues.containsKey("PRJ-9999"));
+        //101 keys, halved 7 times (51, 26, 13, 7, 4, 2 and 1 keys) down to the missing one
+        Assert.assertEquals(stub.getSearchCount(), 1 + 7 * 2);
+        //the missing key and the reference that isn't a key are looked up on their own
+        Assert.assertEquals(stub.getRequestCount() - stub.getSearchCount(), 2);
+    }
+}